@@ -3,46 +3,53 @@ package io.token.sample;
 import static com.google.common.base.Charsets.UTF_8;
 import static io.grpc.Status.Code.NOT_FOUND;
 import static io.token.TokenClient.TokenCluster.SANDBOX;
-import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
 import static io.token.util.Util.generateNonce;
 
+import com.google.common.base.Splitter;
 import com.google.common.io.Resources;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import io.grpc.StatusRuntimeException;
-import io.token.proto.common.account.AccountProtos.BankAccount;
-import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.TokenClient.TokenCluster;
 import io.token.proto.common.member.MemberProtos.Profile;
 import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
-import io.token.proto.common.token.TokenProtos.Token;
 import io.token.proto.common.transfer.TransferProtos.Transfer;
-import io.token.proto.common.transferinstructions.TransferInstructionsProtos;
-import io.token.proto.common.transferinstructions.TransferInstructionsProtos.TransferDestination;
-import io.token.proto.common.transferinstructions.TransferInstructionsProtos.TransferEndpoint;
+import io.token.security.KeyStore;
 import io.token.security.UnsecuredFileSystemKeyStore;
-import io.token.tokenrequest.TokenRequest;
-import io.token.tokenrequest.TokenRequest.TransferBuilder;
 import io.token.tpp.Member;
 import io.token.tpp.TokenClient;
 import io.token.tpp.tokenrequest.TokenRequestCallback;
 
-import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-import spark.QueryParamsMap;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.Response;
+import spark.Route;
 import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 /**
  * Application main entry point. To execute, one needs to run something like:
@@ -54,11 +61,89 @@ import spark.Spark;
  * </pre>
  */
 public class Application {
-    private static final int PORT = 3000;
-    private static final String BASE_URL = "http://localhost:" + PORT;
+    private static final Logger logger = LoggerFactory.getLogger(Application.class);
+    private static final int PORT = Settings.getInt("server.port", 3000);
+    // the URL browsers reach the server at, e.g. that of the load balancer in front of the nodes
+    private static final String BASE_URL = Settings
+            .getString("server.public-base-url", "http://localhost:" + PORT)
+            .replaceFirst("/+$", "");
     private static final String CSRF_TOKEN_KEY = "csrf_token";
-    private static final TokenClient tokenClient = initializeSDK();
-    private static final Member merchantMember = initializeMember(tokenClient);
+    private static final ExecutionMode EXECUTION_MODE =
+            Settings.getEnum("execution.mode", ExecutionMode.class, ExecutionMode.BLOCKING);
+    // deadline of one SDK call, used both as its gRPC deadline and as its bulkhead deadline
+    private static final long SDK_TIMEOUT_MS = Settings.getLong("sdk.timeout-ms", 10_000);
+    // a request makes at most three SDK calls one after the other, e.g. verifying a callback,
+    // fetching the token and redeeming it
+    private static final long REQUEST_TIMEOUT_MS = 3 * SDK_TIMEOUT_MS;
+    private static final TokenBackend TOKEN_BACKEND =
+            Settings.getEnum("token.backend", TokenBackend.class, TokenBackend.SDK);
+    private static final TokenCluster TOKEN_CLUSTER =
+            Settings.getEnum("token.cluster", TokenCluster.class, SANDBOX);
+    // the URL the SDK would build, on the web app of the cluster
+    private static final String TOKEN_REQUEST_URL_TEMPLATE = Settings.getString(
+            "token.request-url-template",
+            TOKEN_BACKEND == TokenBackend.FAKE
+                    ? FakeTokenGateway.APPROVAL_PATH + "{requestId}"
+                    : "https://" + TOKEN_CLUSTER.webAppUrl() + "/app/request-token/{requestId}");
+    private static final MemberStartup MEMBER_STARTUP =
+            Settings.getEnum("member.startup", MemberStartup.class, MemberStartup.LAZY);
+    private static final List<String> REDIRECT_PATHS = Arrays.asList(
+            "/redeem",
+            "/redeem-popup",
+            "/redeem-standing-order",
+            "/redeem-standing-order-popup",
+            "/redirect-one-step-payment",
+            "/redirect-one-step-payment-popup");
+    private static final MerchantRouting MERCHANT_ROUTING =
+            Settings.getEnum("merchant.routing", MerchantRouting.class, MerchantRouting.SINGLE);
+    private static final String MERCHANT_PREFIX =
+            MERCHANT_ROUTING == MerchantRouting.PATH ? "/merchants/:merchant" : "";
+    private static final Map<String, String> MERCHANT_HOSTS =
+            Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator('=')
+                    .split(Settings.getString("merchant.hosts", ""));
+    // the origin of each merchant host's redirect URLs; never taken from the request
+    private static final Map<String, String> MERCHANT_ORIGINS =
+            Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator('=')
+                    .split(Settings.getString("merchant.host-origins", ""));
+    private static final Metrics metrics = new Metrics();
+    private static final StateStore stateStore = newStateStore();
+    private static final Bulkhead tokenRequestBulkhead = newBulkhead("token-request", 64);
+    private static final Bulkhead redeemBulkhead = newBulkhead("redeem", 64);
+    private static final Bulkhead standingOrderBulkhead = newBulkhead("standing-order", 16);
+    private static final Bulkhead transferStatusBulkhead = newBulkhead("transfer-status", 16);
+    // loading a merchant uses the blocking SDK calls in either mode
+    private static final Bulkhead memberLoadBulkhead = newBulkhead("member-load", 16, true);
+    private static final TokenRequestUrlGenerator tokenRequestUrls =
+            Settings.getBoolean("token.local-request-urls", true)
+                    ? new TokenRequestUrlGenerator(TOKEN_REQUEST_URL_TEMPLATE)
+                    : null;
+    private static final RedemptionTable<Transfer> redeemedTransfers =
+            newRedemptionTable("transfer", Transfer.parser());
+    private static final RedemptionTable<StandingOrderSubmission> redeemedStandingOrders =
+            newRedemptionTable("standing-order", StandingOrderSubmission.parser());
+    private static final TokenClientPool tokenClients =
+            TOKEN_BACKEND == TokenBackend.SDK ? initializeSDK() : null;
+    private static final FakeTokenGateway fake =
+            TOKEN_BACKEND == TokenBackend.FAKE ? newFakeTokenGateway() : null;
+    // the one merchant member, or null if merchants are resolved per request
+    private static final TokenGateway backend =
+            MERCHANT_ROUTING == MerchantRouting.SINGLE ? initializeBackend() : null;
+    private static final Merchant defaultMerchant =
+            backend == null ? null : newMerchant("", backend, BASE_URL);
+    private static final MerchantCache merchants = backend == null
+            ? new MerchantCache(
+                    Settings.getLong("merchant.cache-size", 1_000),
+                    Settings.getLong("merchant.idle-ttl-ms", 60 * 60 * 1000),
+                    Application::loadMerchant)
+            : null;
+    private static final PaymentJournal journal =
+            Settings.getBoolean("journal.enabled", true) ? openJournal() : null;
+    private static final BatchProcessor batchProcessor =
+            new BatchProcessor(Settings.getInt("batch.parallelism", 16));
+    private static final RedemptionQueue redemptionQueue =
+            Settings.getBoolean("redeem.queue", false) ? newRedemptionQueue() : null;
+    private static final TransferTracker transferTracker =
+            Settings.getBoolean("tracker.enabled", true) ? newTransferTracker() : null;
 
     /**
      * Main function.
@@ -69,13 +154,37 @@ public class Application {
     public static void main(String[] args) throws IOException {
         // Initializes the server
         Spark.port(PORT);
+        initializeThreadPool();
+        initializeMetrics();
+
+        // Shed load when an SDK operation is saturated or failing, instead of queueing requests
+        Spark.exception(SdkUnavailableException.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+            res.body("Service temporarily unavailable, please try again");
+        });
+        Spark.exception(StateStoreException.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", "1");
+            res.body("Service temporarily unavailable, please try again");
+        });
+        Spark.exception(UnknownMerchantException.class, (e, req, res) -> {
+            res.status(404);
+            res.body(e.getMessage());
+        });
+        Spark.exception(InvalidRequestException.class, (e, req, res) -> {
+            res.status(400);
+            res.body(e.getMessage());
+        });
 
         // Endpoint for transfer payment, called by client side to initiate a payment.
-        Spark.get("/transfer", (req, res) -> {
-            Map<String, String> params = toMap(req.queryMap());
-            String callbackUrl = BASE_URL + "/redeem";
+        get(MERCHANT_PREFIX + "/transfer", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromQuery(req);
+            String callbackPath = "/redeem";
 
-            String tokenRequestUrl = initializeTokenRequestUrl(params, callbackUrl, res, "DEFAULT");
+            String tokenRequestUrl = await(
+                    initializeTokenRequestUrl(merchant, payment, callbackPath, res, "DEFAULT"));
 
             // send a 302 redirect
             res.status(302);
@@ -84,27 +193,26 @@ public class Application {
         });
 
         // Endpoint for transfer payment, called by client side to initiate a payment.
-        Spark.post("/transfer-popup", (req, res) -> {
-            Gson gson = new Gson();
-            Type type = new TypeToken<Map<String, String>>() {
-            }.getType();
-            Map<String, String> formData = gson.fromJson(req.body(), type);
-            String callbackUrl = BASE_URL + "/redeem-popup";
+        post(MERCHANT_PREFIX + "/transfer-popup", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromJson(body(req));
+            String callbackPath = "/redeem-popup";
 
-            String tokenRequestUrl =
-                    initializeTokenRequestUrl(formData, callbackUrl, res, "DEFAULT");
+            String tokenRequestUrl = await(
+                    initializeTokenRequestUrl(merchant, payment, callbackPath, res, "DEFAULT"));
 
             // return the generated Token Request URL
             res.status(200);
             return tokenRequestUrl;
         });
 
-        Spark.get("/standing-order", (req, res) -> {
-            Map<String, String> params = toMap(req.queryMap());
-            String callbackUrl = BASE_URL + "/redeem-standing-order";
+        get(MERCHANT_PREFIX + "/standing-order", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromQuery(req);
+            String callbackPath = "/redeem-standing-order";
 
-            String tokenRequestUrl =
-                    initializeStandingOrderTokenRequestUrl(params, callbackUrl, res);
+            String tokenRequestUrl = await(
+                    initializeStandingOrderTokenRequestUrl(merchant, payment, callbackPath, res));
 
             // send a 302 redirect
             res.status(302);
@@ -112,27 +220,26 @@ public class Application {
             return null;
         });
 
-        Spark.post("/standing-order-popup", (req, res) -> {
-            Gson gson = new Gson();
-            Type type = new TypeToken<Map<String, String>>() {
-            }.getType();
-            Map<String, String> formData = gson.fromJson(req.body(), type);
-            String callbackUrl = BASE_URL + "/redeem-standing-order-popup";
+        post(MERCHANT_PREFIX + "/standing-order-popup", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromJson(body(req));
+            String callbackPath = "/redeem-standing-order-popup";
 
-            String tokenRequestUrl =
-                    initializeStandingOrderTokenRequestUrl(formData, callbackUrl, res);
+            String tokenRequestUrl = await(
+                    initializeStandingOrderTokenRequestUrl(merchant, payment, callbackPath, res));
 
             // return the generated Token Request URL
             res.status(200);
             return tokenRequestUrl;
         });
 
-        Spark.get("/one-step-payment", (req, res) -> {
-            Map<String, String> params = toMap(req.queryMap());
-            String callbackUrl = BASE_URL + "/redirect-one-step-payment";
+        get(MERCHANT_PREFIX + "/one-step-payment", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromQuery(req);
+            String callbackPath = "/redirect-one-step-payment";
 
-            String tokenRequestUrl =
-                    initializeTokenRequestUrl(params, callbackUrl, res, "ONE_STEP");
+            String tokenRequestUrl = await(
+                    initializeTokenRequestUrl(merchant, payment, callbackPath, res, "ONE_STEP"));
 
             // send a 302 redirect
             res.status(302);
@@ -140,16 +247,13 @@ public class Application {
             return null;
         });
 
-        Spark.post("/one-step-payment-popup", (req, res) -> {
-            Gson gson = new Gson();
-            Type type = new TypeToken<Map<String, String>>() {
-            }.getType();
-            Map<String, String> formData = gson.fromJson(req.body(), type);
-            String callbackUrl =
-                    BASE_URL + "/redirect-one-step-payment-popup";
+        post(MERCHANT_PREFIX + "/one-step-payment-popup", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentRequest payment = PaymentRequest.fromJson(body(req));
+            String callbackPath = "/redirect-one-step-payment-popup";
 
-            String tokenRequestUrl =
-                    initializeTokenRequestUrl(formData, callbackUrl, res, "ONE_STEP");
+            String tokenRequestUrl = await(
+                    initializeTokenRequestUrl(merchant, payment, callbackPath, res, "ONE_STEP"));
 
             // return the generated Token Request URL
             res.status(200);
@@ -157,152 +261,309 @@ public class Application {
         });
 
         // for redirect flow, use Token.parseTokenRequestCallbackUrl()
-        Spark.get("/redirect-one-step-payment", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redirect-one-step-payment", (req, res) -> {
             res.status(200);
             return "Success! One Step Payment " + req.queryParams("transferId");
         });
 
         // for redirect flow, use Token.parseTokenRequestCallbackUrl()
-        Spark.get("/redirect-one-step-payment-popup", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redirect-one-step-payment-popup", (req, res) -> {
             // parse JSON from data query param
-            Gson gson = new Gson();
-            Type type = new TypeToken<Map<String, String>>() {
-            }.getType();
-            Map<String, String> data = gson.fromJson(req.queryParams("data"), type);
+            Map<String, String> data = RequestParams.fromJson(req.queryParams("data"));
             res.status(200);
             return "Success! One Step Payment " + data.get("transferId");
         });
 
         // for redirect flow, use Token.parseTokenRequestCallbackUrl()
-        Spark.get("/redeem", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redeem", (req, res) -> {
             return redeem(req, res);
         });
 
         // for popup flow, use Token.parseTokenRequestCallbackParams()
-        Spark.get("/redeem-popup", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redeem-popup", (req, res) -> {
             return redeemPopup(req, res);
         });
 
         // for redirect flow, use Token.parseTokenRequestCallbackUrl()
-        Spark.get("/redeem-standing-order", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redeem-standing-order", (req, res) -> {
+            Merchant merchant = merchant(req);
             String callbackUrl = req.url() + "?" + req.queryString();
 
             // retrieve CSRF token from browser cookie
             String csrfToken = req.cookie(CSRF_TOKEN_KEY);
 
             // check CSRF token and retrieve state and token ID from callback parameters
-            TokenRequestCallback callback =
-                    tokenClient.parseTokenRequestCallbackUrlBlocking(callbackUrl, csrfToken);
+            CompletableFuture<TokenRequestCallback> callback =
+                    merchant.getGateway().parseTokenRequestCallbackUrl(callbackUrl, csrfToken);
 
-            // redeem the token at the server to move the funds
-            StandingOrderSubmission standingOrderSubmission =
-                    merchantMember.redeemStandingOrderTokenBlocking(callback.getTokenId());
-            res.status(200);
-            return "Success! Redeemed standing order " + standingOrderSubmission.getId();
+            return redeemStandingOrder(merchant, callback, csrfToken, res);
         });
 
         // for redirect flow, use Token.parseTokenRequestCallbackUrl()
-        Spark.get("/redeem-standing-order-popup", (req, res) -> {
+        get(MERCHANT_PREFIX + "/redeem-standing-order-popup", (req, res) -> {
+            Merchant merchant = merchant(req);
             // parse JSON from data query param
-            Gson gson = new Gson();
-            Type type = new TypeToken<Map<String, String>>() {
-            }.getType();
-            Map<String, String> data = gson.fromJson(req.queryParams("data"), type);
+            Map<String, String> data = RequestParams.fromJson(req.queryParams("data"));
 
             // retrieve CSRF token from browser cookie
             String csrfToken = req.cookie(CSRF_TOKEN_KEY);
 
             // check CSRF token and retrieve state and token ID from callback parameters
-            TokenRequestCallback callback =
-                    tokenClient.parseTokenRequestCallbackParamsBlocking(data, csrfToken);
+            CompletableFuture<TokenRequestCallback> callback =
+                    merchant.getGateway().parseTokenRequestCallbackParams(data, csrfToken);
 
-            // redeem the token at the server to move the funds
-            StandingOrderSubmission standingOrderSubmission =
-                    merchantMember.redeemStandingOrderTokenBlocking(callback.getTokenId());
+            return redeemStandingOrder(merchant, callback, csrfToken, res);
+        });
+
+        // Creates many payment links at once, answering with one NDJSON line per link as it's
+        // created. Accepts a JSON array or NDJSON of {amount, currency, description, type}.
+        post(MERCHANT_PREFIX + "/transfers/batch", (req, res) -> {
+            Merchant merchant = merchant(req);
             res.status(200);
-            return "Success! Redeemed standing order " + standingOrderSubmission.getId();
+            res.type("application/x-ndjson");
+            Writer out = new OutputStreamWriter(res.raw().getOutputStream(), UTF_8);
+            batchProcessor.process(body(req), out, item -> createBatchTokenRequest(merchant, item));
+            out.flush();
+            return "";
         });
 
-        // Serve the web page, stylesheet and JS script:
-        String script = Resources.toString(Resources.getResource("script.js"), UTF_8)
-                .replace("{alias}", merchantMember.firstAliasBlocking().getValue());
-        Spark.get("/script.js", (req, res) -> script);
-        String style = Resources.toString(Resources.getResource("style.css"), UTF_8);
-        Spark.get("/style.css", (req, res) -> {
-            res.type("text/css");
-            return style;
+        // Latest journal record of a payment, by reference ID or token ID
+        get(MERCHANT_PREFIX + "/payments/:id", (req, res) -> {
+            Merchant merchant = merchant(req);
+            JournalRecord record = journal == null ? null : journal.latest(req.params("id"));
+            res.type("application/json");
+            if (record == null || !isOwnedBy(merchant, record.getMerchantKey())) {
+                res.status(404);
+                return "{}";
+            }
+            res.status(200);
+            return journalRecordJson(record);
         });
-        String page = Resources.toString(Resources.getResource("index.html"), UTF_8);
-        Spark.get("/", (req, res) -> page);
+
+        // Last known status of a redeemed transfer, while it settles and shortly after
+        get(MERCHANT_PREFIX + "/transfers/:transferId/status", (req, res) -> {
+            Merchant merchant = merchant(req);
+            TransferTracker.Snapshot status = transferTracker == null
+                    ? null
+                    : transferTracker.status(req.params("transferId"));
+            res.type("application/json");
+            if (status == null || !isOwnedBy(merchant, status.getMerchantKey())) {
+                res.status(404);
+                return "{}";
+            }
+            res.status(200);
+            return transferStatusJson(status);
+        });
+
+        // Status of a redemption queued by one of the redeem endpoints
+        get(MERCHANT_PREFIX + "/payment-status/:refId", (req, res) -> {
+            Merchant merchant = merchant(req);
+            PaymentStatus status = redemptionQueue == null
+                    ? null
+                    : redemptionQueue.status(req.params("refId"));
+            res.type("application/json");
+            if (status == null || !isOwnedBy(merchant, status.getMerchantKey())) {
+                res.status(404);
+                return "{}";
+            }
+            res.status(200);
+            return paymentStatusJson(status);
+        });
+
+        if (fake != null) {
+            // Stands in for the Token web app: approves the request and returns to the merchant
+            get(FakeTokenGateway.APPROVAL_PATH + ":requestId", (req, res) -> {
+                String callbackUrl = fake.approve(req.params("requestId"));
+                if (callbackUrl == null) {
+                    res.status(404);
+                    return "Unknown token request";
+                }
+                res.redirect(callbackUrl, 302);
+                return null;
+            });
+        }
+
+        // Liveness: the process is up and the member hasn't failed to load
+        get("/health/live", (req, res) -> {
+            CompletableFuture<?> ready = memberReady();
+            boolean failed = ready.isCompletedExceptionally();
+            res.type("application/json");
+            res.status(failed ? 503 : 200);
+            return healthJson(failed ? "FAILED" : "UP", ready);
+        });
+
+        // Readiness: the member is usable, so payments can be made
+        get("/health/ready", (req, res) -> {
+            CompletableFuture<?> ready = memberReady();
+            String status = !ready.isDone()
+                    ? "STARTING"
+                    : ready.isCompletedExceptionally() ? "FAILED" : "READY";
+            res.type("application/json");
+            res.status(status.equals("READY") ? 200 : 503);
+            return healthJson(status, ready);
+        });
+
+        // Cached merchant metadata and the number of SDK calls it has saved
+        get(MERCHANT_PREFIX + "/member-metadata", (req, res) -> {
+            MemberMetadataCache memberMetadata = merchant(req).getMetadata();
+            res.type("application/json");
+            return memberMetadataJson(memberMetadata, await(memberMetadata.get()));
+        });
+        post(MERCHANT_PREFIX + "/member-metadata/refresh", (req, res) -> {
+            MemberMetadataCache memberMetadata = merchant(req).getMetadata();
+            res.type("application/json");
+            return memberMetadataJson(memberMetadata, await(memberMetadata.refresh()));
+        });
+
+        // Serve the web page, stylesheet, JS script and image. The page links to the payment
+        // routes relative to its own URL, so with path routing each merchant gets it at
+        // /merchants/{merchant}/.
+        StaticAssets assets = new StaticAssets(Settings.getBoolean("assets.gzip", true));
+        assets.addFingerprinted(
+                "/script.js",
+                "application/javascript; charset=utf-8",
+                Resources.toByteArray(Resources.getResource("script.js")));
+        assets.addFingerprinted(
+                "/style.css",
+                "text/css; charset=utf-8",
+                Resources.toByteArray(Resources.getResource("style.css")));
+        assets.addFingerprinted(
+                "/southside.png",
+                "image/png",
+                Resources.toByteArray(Resources.getResource("southside.png")));
+        String page = assets.rewriteReferences(
+                Resources.toString(Resources.getResource("index.html"), UTF_8));
+        assets.add(MERCHANT_PREFIX + "/", "text/html; charset=utf-8", page.getBytes(UTF_8));
+        assets.registerRoutes(Application::get);
     }
 
     private static String redeem(spark.Request req, spark.Response res) {
+        Merchant merchant = merchant(req);
         String callbackUrl = req.url() + "?" + req.queryString();
 
         // retrieve CSRF token from browser cookie
         String csrfToken = req.cookie(CSRF_TOKEN_KEY);
 
         // check CSRF token and retrieve state and token ID from callback parameters
-        TokenRequestCallback callback =
-                tokenClient.parseTokenRequestCallbackUrlBlocking(callbackUrl, csrfToken);
-
-        // get the token and check its validity
-        Token token = merchantMember.getTokenBlocking(callback.getTokenId());
-
-        // redeem the token at the server to move the funds
-        Transfer transfer = merchantMember.redeemTokenBlocking(token);
-        res.status(200);
-        return "Success! Redeemed transfer " + transfer.getId();
+        CompletableFuture<TokenRequestCallback> callback =
+                merchant.getGateway().parseTokenRequestCallbackUrl(callbackUrl, csrfToken);
 
+        return redeemTransfer(merchant, callback, csrfToken, res);
     }
 
     private static String redeemPopup(spark.Request req, spark.Response res) {
+        Merchant merchant = merchant(req);
         // parse JSON from data query param
-        Gson gson = new Gson();
-        Type type = new TypeToken<Map<String, String>>() {
-        }.getType();
-        Map<String, String> data = gson.fromJson(req.queryParams("data"), type);
+        Map<String, String> data = RequestParams.fromJson(req.queryParams("data"));
 
         // retrieve CSRF token from browser cookie
         String csrfToken = req.cookie(CSRF_TOKEN_KEY);
 
         // check CSRF token and retrieve state and token ID from callback parameters
-        TokenRequestCallback callback =
-                tokenClient.parseTokenRequestCallbackParamsBlocking(data, csrfToken);
+        CompletableFuture<TokenRequestCallback> callback =
+                merchant.getGateway().parseTokenRequestCallbackParams(data, csrfToken);
 
-        // get the token and check its validity
-        Token token = merchantMember.getTokenBlocking(callback.getTokenId());
+        return redeemTransfer(merchant, callback, csrfToken, res);
+    }
 
-        // redeem the token at the server to move the funds
-        Transfer transfer = merchantMember.redeemTokenBlocking(token);
+    private static String redeemTransfer(
+            Merchant merchant,
+            CompletableFuture<TokenRequestCallback> callback,
+            String csrfToken,
+            Response res) {
+        RedeemPipeline redeemPipeline = merchant.getRedeemPipeline();
+        if (redemptionQueue != null) {
+            return enqueueRedemption(
+                    merchant, await(callback), csrfToken, "transfer", res, tokenId ->
+                            redeemPipeline.redeem(tokenId, csrfToken)
+                                    .thenApply(transfer -> track(merchant, transfer).getId()));
+        }
+        String refId = redeemPipeline.refId(csrfToken);
+        Transfer transfer = await(callback.thenCompose(parsed -> journalRedemption(
+                merchant,
+                "transfer",
+                refId,
+                parsed.getTokenId(),
+                redeemPipeline.redeem(parsed.getTokenId(), csrfToken),
+                Transfer::getId)));
+        track(merchant, transfer);
         res.status(200);
         return "Success! Redeemed transfer " + transfer.getId();
+    }
 
+    private static String redeemStandingOrder(
+            Merchant merchant,
+            CompletableFuture<TokenRequestCallback> callback,
+            String csrfToken,
+            Response res) {
+        RedeemPipeline redeemPipeline = merchant.getRedeemPipeline();
+        if (redemptionQueue != null) {
+            return enqueueRedemption(
+                    merchant, await(callback), csrfToken, "standing order", res, tokenId ->
+                            redeemPipeline.redeemStandingOrder(tokenId)
+                                    .thenApply(StandingOrderSubmission::getId));
+        }
+        // redeem the token at the server to move the funds
+        String refId = redeemPipeline.refId(csrfToken);
+        StandingOrderSubmission standingOrderSubmission =
+                await(callback.thenCompose(parsed -> journalRedemption(
+                        merchant,
+                        "standing order",
+                        refId,
+                        parsed.getTokenId(),
+                        redeemPipeline.redeemStandingOrder(parsed.getTokenId()),
+                        StandingOrderSubmission::getId)));
+        res.status(200);
+        return "Success! Redeemed standing order " + standingOrderSubmission.getId();
     }
 
-    private static String initializeTokenRequestUrl(
-            Map<String, String> params, String callbackUrl,
-            Response response, String transferType) {
-        double amount = Double.parseDouble(params.get("amount"));
-        String currency = params.get("currency");
-        String description = params.get("description");
-        TransferDestination destination = TransferDestination.newBuilder()
-                .setSepa(TransferDestination.Sepa.newBuilder().setBic("bic")
-                        .setIban("DE16700222000072880129").build())
-                .setCustomerData(TransferInstructionsProtos.CustomerData.newBuilder()
-                        .addLegalNames("merchant-sample-java").build())
-                .build();
-
-        // This is testing account for one of bank to test one step support
-        // Will need bank credentials to complete the flow. Test Credentials are available.
-        String bankId = "ngp-cbi-05034";
-        TransferEndpoint source = TransferEndpoint.newBuilder()
-                .setAccount(BankAccount.newBuilder()
-                        .setIban(BankAccount.Iban.newBuilder()
-                                .setIban("IT77O0848283352871412938123").build())
-                        .build())
-                .setBankId(bankId).build();
+    /**
+     * Hands a verified callback to the redemption queue and answers with 202 and the URL at
+     * which the outcome can be polled.
+     */
+    private static String enqueueRedemption(
+            Merchant merchant,
+            TokenRequestCallback callback,
+            String csrfToken,
+            String type,
+            Response res,
+            Function<String, CompletableFuture<String>> redemption) {
+        String tokenId = callback.getTokenId();
+        String issuedRefId = merchant.getRedeemPipeline().refId(csrfToken);
+        // if the token request wasn't issued by this server, track it by token ID instead
+        String refId = issuedRefId == null ? tokenId : issuedRefId;
+        boolean queued = redemptionQueue.submit(
+                merchant.getKey(), refId, tokenId, type, () -> journalRedemption(
+                        merchant,
+                        type,
+                        issuedRefId,
+                        tokenId,
+                        redemption.apply(tokenId),
+                        Function.identity()));
+        if (!queued) {
+            res.status(503);
+            res.header("Retry-After", "1");
+            return "Too many pending redemptions, please try again";
+        }
+        String statusUrl = merchantPath(merchant) + "/payment-status/" + refId;
+        res.status(202);
+        res.header("Location", statusUrl);
+        return "Accepted! Redeeming " + type + ", check " + statusUrl + " for the result";
+    }
 
+    /**
+     * Hands a redeemed transfer to the tracker, which follows it until the bank settles it.
+     */
+    private static Transfer track(Merchant merchant, Transfer transfer) {
+        if (transferTracker != null) {
+            transferTracker.track(merchant.getKey(), merchant.getGateway(), transfer);
+        }
+        return transfer;
+    }
+
+    private static CompletableFuture<String> initializeTokenRequestUrl(
+            Merchant merchant, PaymentRequest payment, String callbackPath,
+            Response response, String transferType) {
         // generate CSRF token
         String csrfToken = generateNonce();
 
@@ -312,39 +573,41 @@ public class Application {
         // set CSRF token in browser cookie
         response.cookie(CSRF_TOKEN_KEY, csrfToken);
 
-        // create the token request builder
-        TransferBuilder tokenRequestBuilder =
-                TokenRequest.transferTokenRequestBuilder(amount, currency)
-                        .setDescription(description).addDestination(destination).setRefId(refId)
-                        .setToAlias(merchantMember.firstAliasBlocking())
-                        .setToMemberId(merchantMember.memberId()).setRedirectUrl(callbackUrl)
-                        .setCsrfToken(csrfToken);
-
-        if (transferType.equals("ONE_STEP")) {
-            tokenRequestBuilder.setSource(source);
-            tokenRequestBuilder.setBankId(bankId);
+        return createTokenRequestUrl(
+                merchant, payment, callbackPath, csrfToken, refId, transferType);
+    }
+
+    private static CompletableFuture<String> createTokenRequestUrl(
+            Merchant merchant, PaymentRequest payment, String callbackPath,
+            String csrfToken, String refId, String transferType) {
+        RedeemPipeline redeemPipeline = merchant.getRedeemPipeline();
+        TokenGateway gateway = merchant.getGateway();
+        if (!transferType.equals("ONE_STEP")) {
+            // remember the request so its callback can be matched to its reference ID
+            // and redeemed without fetching the token
+            redeemPipeline.expect(csrfToken, refId, payment.getDescription());
         }
 
-        String requestId = merchantMember.storeTokenRequestBlocking(tokenRequestBuilder.build());
-
-        // generate Token Request URL
-        return tokenClient.generateTokenRequestUrlBlocking(requestId);
-    }
-
-    private static String initializeStandingOrderTokenRequestUrl(
-            Map<String, String> params,
-            String callbackUrl, Response response) {
-        double amount = Double.parseDouble(params.get("amount"));
-        String currency = params.get("currency");
-        String description = params.get("description");
-        TransferDestination destination = TransferDestination.newBuilder()
-                .setSepa(TransferDestination.Sepa.newBuilder().setBic("bic")
-                        .setIban("DE16700222000072880129").build())
-                .setCustomerData(TransferInstructionsProtos.CustomerData.newBuilder()
-                        .addLegalNames("merchant-sample-java").build())
-                .build();
-        LocalDate startDate = LocalDate.now();
-        LocalDate endDate = startDate.plusYears(1);
+        return merchant.getMetadata().get()
+                .thenCompose(metadata -> gateway.storeTokenRequest(TokenRequests.transfer(
+                        payment,
+                        metadata,
+                        callbackPath,
+                        refId,
+                        csrfToken,
+                        transferType)))
+                .thenApply(requestId -> journalRequested(
+                        merchant,
+                        transferType.equals("ONE_STEP") ? "one-step payment" : "transfer",
+                        refId,
+                        requestId))
+                // generate Token Request URL
+                .thenCompose(requestId -> generateTokenRequestUrl(gateway, requestId));
+    }
+
+    private static CompletableFuture<String> initializeStandingOrderTokenRequestUrl(
+            Merchant merchant, PaymentRequest payment,
+            String callbackPath, Response response) {
         String refId = generateNonce();
 
         // generate CSRF token
@@ -352,126 +615,635 @@ public class Application {
         // set CSRF token in browser cookie
         response.cookie(CSRF_TOKEN_KEY, csrfToken);
 
-        // create the token request
-        TokenRequest request = TokenRequest
-                .standingOrderRequestBuilder(amount, currency, "MNTH", startDate.toString(),
-                        endDate.toString(), Collections.singletonList(destination))
-                .setDescription(description).setRefId(refId)
-                .setToAlias(merchantMember.firstAliasBlocking())
-                .setToMemberId(merchantMember.memberId()).setRedirectUrl(callbackUrl)
-                .setCsrfToken(csrfToken).build();
+        return createStandingOrderTokenRequestUrl(
+                merchant, payment, callbackPath, csrfToken, refId);
+    }
 
-        String requestId = merchantMember.storeTokenRequestBlocking(request);
+    private static CompletableFuture<String> createStandingOrderTokenRequestUrl(
+            Merchant merchant, PaymentRequest payment,
+            String callbackPath, String csrfToken, String refId) {
+        RedeemPipeline redeemPipeline = merchant.getRedeemPipeline();
+        TokenGateway gateway = merchant.getGateway();
+        // remember the request so its callback can be matched to its reference ID
+        redeemPipeline.expect(csrfToken, refId, payment.getDescription());
+
+        return merchant.getMetadata().get()
+                .thenCompose(metadata -> gateway.storeTokenRequest(TokenRequests.standingOrder(
+                        payment,
+                        metadata,
+                        callbackPath,
+                        refId,
+                        csrfToken)))
+                .thenApply(requestId ->
+                        journalRequested(merchant, "standing order", refId, requestId))
+                // generate Token Request URL
+                .thenCompose(requestId -> generateTokenRequestUrl(gateway, requestId));
+    }
 
-        // generate Token Request URL
-        return tokenClient.generateTokenRequestUrlBlocking(requestId);
+    /**
+     * Creates the token request of one item of a payment batch. There is no browser to hold
+     * the CSRF cookie, so its value is returned with the URL; whoever hands out the link has to
+     * set it for the callback to be accepted.
+     */
+    private static CompletableFuture<Map<String, Object>> createBatchTokenRequest(
+            Merchant merchant,
+            PaymentRequest item) {
+        String csrfToken = generateNonce();
+        String refId = generateNonce();
+        String type = item.getType("DEFAULT");
+        CompletableFuture<String> tokenRequestUrl;
+        switch (type) {
+            case "DEFAULT":
+                tokenRequestUrl = createTokenRequestUrl(
+                        merchant, item, "/redeem", csrfToken, refId, type);
+                break;
+            case "ONE_STEP":
+                tokenRequestUrl = createTokenRequestUrl(
+                        merchant, item, "/redirect-one-step-payment", csrfToken, refId, type);
+                break;
+            case "STANDING_ORDER":
+                tokenRequestUrl = createStandingOrderTokenRequestUrl(
+                        merchant, item, "/redeem-standing-order", csrfToken, refId);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+        return tokenRequestUrl.thenApply(url -> {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("refId", refId);
+            result.put("tokenRequestUrl", url);
+            result.put("csrfToken", csrfToken);
+            return result;
+        });
+    }
+
+    private static String journalRequested(
+            Merchant merchant,
+            String type,
+            String refId,
+            String tokenRequestId) {
+        if (journal != null) {
+            journal.append(JournalRecord.requested(merchant.getKey(), type, refId, tokenRequestId));
+        }
+        return tokenRequestId;
+    }
+
+    /**
+     * Records the outcome of a redemption in the journal once it completes.
+     */
+    private static <T> CompletableFuture<T> journalRedemption(
+            Merchant merchant,
+            String type,
+            String refId,
+            String tokenId,
+            CompletableFuture<T> redemption,
+            Function<T, String> resultId) {
+        if (journal == null) {
+            return redemption;
+        }
+        String key = merchant.getKey();
+        return redemption.whenComplete((result, error) -> journal.append(error == null
+                ? JournalRecord.redeemed(key, type, refId, tokenId, resultId.apply(result))
+                : JournalRecord.failed(
+                        key, type, refId, tokenId, Futures.unwrap(error).toString())));
+    }
+
+    private static CompletableFuture<String> generateTokenRequestUrl(
+            TokenGateway gateway,
+            String requestId) {
+        return tokenRequestUrls != null
+                ? CompletableFuture.completedFuture(tokenRequestUrls.generate(requestId))
+                : gateway.generateTokenRequestUrl(requestId);
+    }
+
+    private static RedemptionQueue newRedemptionQueue() {
+        return new RedemptionQueue(
+                Settings.getInt("redeem.queue-workers", 4),
+                Settings.getInt("redeem.queue-capacity", 10_000),
+                Settings.getInt("redeem.queue-batch-size", 32),
+                Settings.getInt("redeem.queue-max-attempts", 5),
+                Settings.getLong("redeem.queue-initial-backoff-ms", 500),
+                Settings.getLong("redeem.queue-max-backoff-ms", 30_000),
+                REQUEST_TIMEOUT_MS,
+                Settings.getLong("redeem.status-ttl-ms", 24 * 60 * 60 * 1000),
+                Settings.getLong("redeem.status-cache-size", 100_000),
+                stateStore);
+    }
+
+    private static TransferTracker newTransferTracker() {
+        int maxTracked = Settings.getInt("tracker.max-transfers", 50_000);
+        long maxDelayMs = Settings.getLong("tracker.max-delay-ms", 60_000);
+        // enough to poll every tracked transfer once per maxDelayMs
+        int pollsPerSecond = (int) ((maxTracked * 1000L + maxDelayMs - 1) / maxDelayMs);
+        TransferTracker tracker = new TransferTracker(
+                Settings.getLong("tracker.tick-ms", 100),
+                Settings.getInt("tracker.wheel-size", 512),
+                Settings.getInt("tracker.max-polls-per-second", pollsPerSecond),
+                Settings.getLong("tracker.initial-delay-ms", 2_000),
+                maxDelayMs,
+                Settings.getLong("tracker.max-age-ms", 24 * 60 * 60 * 1000),
+                maxTracked,
+                Settings.getLong("tracker.history-ttl-ms", 60 * 60 * 1000),
+                Settings.getLong("tracker.history-size", 100_000),
+                metrics);
+        tracker.addListener((transferId, previous, current, terminal) ->
+                logger.info("Transfer {} is now {} (was {})", transferId, current, previous));
+        return tracker;
+    }
+
+    /**
+     * Creates the bulkhead of an SDK operation. In {@link ExecutionMode#BLOCKING} the calls run
+     * on the bulkhead's own threads, so that the request thread can give up on them.
+     */
+    private static Bulkhead newBulkhead(String operation, int defaultMaxConcurrent) {
+        return newBulkhead(
+                operation,
+                defaultMaxConcurrent,
+                EXECUTION_MODE == ExecutionMode.BLOCKING);
+    }
+
+    private static Bulkhead newBulkhead(
+            String operation,
+            int defaultMaxConcurrent,
+            boolean isolated) {
+        String prefix = "bulkhead." + operation + ".";
+        return new Bulkhead(
+                operation,
+                Settings.getInt(prefix + "max-concurrent", defaultMaxConcurrent),
+                Settings.getInt(prefix + "max-queued", defaultMaxConcurrent),
+                SDK_TIMEOUT_MS,
+                new CircuitBreaker(
+                        Settings.getInt(prefix + "failure-threshold", 20),
+                        Settings.getLong(prefix + "open-ms", 5_000)),
+                isolated,
+                metrics);
+    }
+
+    private static PaymentJournal openJournal() {
+        try {
+            return new PaymentJournal(
+                    Paths.get(Settings.getString("journal.dir", "./journal")),
+                    Settings.getInt("journal.segment-bytes", 64 * 1024 * 1024),
+                    Settings.getInt("journal.max-segments", 16),
+                    Settings.getLong("journal.retention-ms", 7 * 24 * 60 * 60 * 1000L),
+                    Settings.getLong("journal.index-size", 1_000_000),
+                    Settings.getInt("journal.batch-size", 1024),
+                    Settings.getInt("journal.queue-capacity", 65_536),
+                    metrics);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T extends MessageLite> RedemptionTable<T> newRedemptionTable(
+            String name,
+            Parser<T> parser) {
+        return new RedemptionTable<>(
+                name,
+                Settings.getInt("redeem.dedupe-stripes", 16),
+                Settings.getLong("redeem.dedupe-size", 100_000),
+                Settings.getLong("redeem.dedupe-ttl-ms", 24 * 60 * 60 * 1000),
+                stateStore,
+                parser,
+                // twice as long as a redemption's SDK calls may take
+                Settings.getLong("redeem.claim-ttl-ms", 2 * REQUEST_TIMEOUT_MS));
+    }
+
+    /**
+     * Creates the store of the state shared by all nodes: issued token requests, redemption
+     * idempotency records and queued redemption statuses.
+     */
+    private static StateStore newStateStore() {
+        if (Settings.getEnum("state.backend", StateBackend.class, StateBackend.LOCAL)
+                == StateBackend.LOCAL) {
+            return new LocalStateStore(Settings.getLong("state.max-entries", 1_000_000));
+        }
+        return new RedisStateStore(
+                Settings.getString("state.redis-host", "localhost"),
+                Settings.getInt("state.redis-port", 6379),
+                Settings.getInt("state.redis-timeout-ms", 2_000),
+                Settings.getInt("state.redis-connections", 8),
+                Settings.getInt("state.write-batch-size", 128),
+                Settings.getInt("state.write-queue-capacity", 65_536),
+                Settings.getLong("state.near-cache-size", 100_000),
+                Settings.getLong("state.near-cache-ttl-ms", 10_000),
+                metrics);
+    }
+
+    /**
+     * Waits for the composed SDK calls of a request, holding the Jetty worker until they finish.
+     * This is the case in {@link ExecutionMode#ASYNC} too; there only the calls themselves are
+     * chained on the gRPC callback threads.
+     *
+     * @param future composed SDK calls
+     * @param <T> result type
+     * @return result
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        return Futures.await(future, REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Sizes the Jetty worker pool and bounds its queue. Every request holds a worker until it's
+     * answered; in {@link ExecutionMode#ASYNC} the worker is parked rather than making the SDK
+     * calls, so the pool defaults to a much larger size.
+     */
+    private static void initializeThreadPool() {
+        boolean async = EXECUTION_MODE == ExecutionMode.ASYNC;
+        int maxThreads = Settings.getInt("server.max-threads", async ? 2000 : 200);
+        int minThreads = Settings.getInt("server.min-threads", async ? 64 : 8);
+        int idleTimeoutMs = Settings.getInt("server.idle-timeout-ms", 60_000);
+        // connections beyond the queue are refused rather than waiting without bound
+        int maxQueued = Settings.getInt("server.max-queued", 1000);
+        QueuedThreadPool pool = new QueuedThreadPool(
+                maxThreads,
+                minThreads,
+                idleTimeoutMs,
+                new ArrayBlockingQueue<>(maxQueued));
+        EmbeddedServers.add(
+                EmbeddedServers.defaultIdentifier(),
+                new EmbeddedJettyFactory().withThreadPool(pool));
+
+        metrics.gauge(
+                "merchant_jetty_threads_busy",
+                "Jetty worker threads handling a request.",
+                pool::getBusyThreads);
+        metrics.gauge(
+                "merchant_jetty_threads_idle",
+                "Jetty worker threads waiting for work.",
+                pool::getIdleThreads);
+        metrics.gauge(
+                "merchant_jetty_threads",
+                "Jetty worker threads.",
+                pool::getThreads);
+        metrics.gauge(
+                "merchant_jetty_queued_jobs",
+                "Jobs waiting for a Jetty worker thread.",
+                pool::getQueueSize);
+    }
+
+    /**
+     * Registers the remaining metrics and starts the metrics server on its own port.
+     */
+    private static void initializeMetrics() {
+        JvmMetrics.register(metrics);
+        if (merchants != null) {
+            metrics.gauge(
+                    "merchant_merchants_loaded",
+                    "Merchants whose member is logged in and cached.",
+                    merchants::size);
+        }
+        if (journal != null) {
+            metrics.gauge(
+                    "merchant_journal_pending_records",
+                    "Journal records waiting to be written.",
+                    journal::pending);
+            metrics.gauge(
+                    "merchant_journal_dropped_records",
+                    "Journal records dropped because the writer fell behind.",
+                    journal::dropped);
+            metrics.gauge(
+                    "merchant_journal_payments",
+                    "Payments in the journal index.",
+                    journal::size);
+        }
+        if (redemptionQueue != null) {
+            metrics.gauge(
+                    "merchant_redemption_queue_depth",
+                    "Redemptions waiting to be started, including those waiting for a retry.",
+                    redemptionQueue::depth);
+        }
+        if (Settings.getBoolean("metrics.enabled", true)) {
+            MetricsServer.start(Settings.getInt("metrics.port", 9090), metrics);
+        }
+    }
+
+    private static void get(String path, Route route) {
+        Spark.get(path, metrics.timed("GET", path, route));
+    }
+
+    private static void post(String path, Route route) {
+        Spark.post(path, metrics.timed("POST", path, route));
+    }
+
+    /**
+     * Creates the gateway to the configured {@link TokenBackend}: either the Token SDK with the
+     * merchant member logged in, or the in-process fake. With {@link MemberStartup#LAZY} the
+     * member is logged in in the background.
+     *
+     * @return gateway
+     */
+    private static TokenGateway initializeBackend() {
+        if (fake != null) {
+            return fake;
+        }
+        MemberProvisioner provisioner = new MemberProvisioner(
+                tokenClients.primary(),
+                Paths.get("./keys"),
+                Paths.get(Settings.getString(
+                        "member.snapshot-file",
+                        "./keys/member-snapshot.json")),
+                REDIRECT_PATHS.stream().map(path -> BASE_URL + path).collect(Collectors.toList()));
+        CompletableFuture<TokenGateway> ready = provisioner.provision()
+                .thenApply(member -> tokenClients.gateway(EXECUTION_MODE, member));
+        if (MEMBER_STARTUP == MemberStartup.EAGER) {
+            return ready.join();
+        }
+        return new LazyTokenGateway(provisioner.snapshot(), ready, SDK_TIMEOUT_MS);
     }
 
     /**
      * Initializes the SDK, pointing it to the specified environment and the directory where keys
-     * are being stored.
+     * are being stored. Each of the {@code token.channels} clients opens its own gRPC channel.
      *
-     * @return TokenClient SDK instance
+     * @return pool of TokenClient SDK instances
      */
-    private static TokenClient initializeSDK() {
+    private static TokenClientPool initializeSDK() {
         Path keys;
         try {
             keys = Files.createDirectories(Paths.get("./keys"));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return TokenClient.builder().connectTo(SANDBOX)
-                // This KeyStore reads private keys from files.
-                // Here, it's set up to read the ./keys dir.
-                .withKeyStore(new UnsecuredFileSystemKeyStore(keys.toFile())).build();
+        // This KeyStore reads private keys from files.
+        // Here, it's set up to read the ./keys dir.
+        KeyStore keyStore = newKeyStore(keys);
+        String host = Settings.getString("token.host", null);
+        int channels = Settings.getInt("token.channels", 1);
+        List<TokenClient> clients = new ArrayList<>(channels);
+        for (int i = 0; i < channels; i++) {
+            TokenClient.Builder builder = TokenClient.builder()
+                    .connectTo(TOKEN_CLUSTER)
+                    .withKeyStore(keyStore)
+                    .timeout(SDK_TIMEOUT_MS)
+                    .keepAlive(Settings.getBoolean("token.keep-alive", true))
+                    .keepAliveTime(Settings.getLong("token.keep-alive-time-ms", 30_000));
+            if (host != null) {
+                // e.g. a local stand-in of the Token gateway
+                builder.hostName(host)
+                        .port(Settings.getInt("token.port", 443))
+                        .useSsl(Settings.getBoolean("token.use-ssl", true));
+            }
+            clients.add(builder.build());
+        }
+        return new TokenClientPool(
+                clients,
+                Settings.getEnum(
+                        "token.channel-selection",
+                        ChannelSelection.class,
+                        ChannelSelection.LEAST_IN_FLIGHT),
+                metrics);
     }
 
     /**
-     * Using a TokenClient SDK client and the merchantMember ID of a previously-created Member
-     * (whose private keys we have stored locally).
-     *
-     * @param tokenClient SDK
-     * @param memberId ID of merchantMember
-     * @return Logged-in merchantMember.
+     * Creates the keystore over the keys directory: the file store itself, or an in-memory
+     * cache in front of it so that signing SDK calls doesn't read key files.
      */
-    private static Member loadMember(TokenClient tokenClient, String memberId) {
+    private static KeyStore newKeyStore(Path keys) {
+        KeyStore files = new UnsecuredFileSystemKeyStore(keys.toFile());
+        if (!Settings.getBoolean("keystore.cache", true)) {
+            return files;
+        }
         try {
-            return tokenClient.getMemberBlocking(memberId);
-        } catch (StatusRuntimeException sre) {
-            if (sre.getStatus().getCode() == NOT_FOUND) {
-                // We think we have a merchantMember's ID and keys, but we can't log in.
-                // In the sandbox testing environment, this can happen:
-                // Sometimes, the merchantMember service erases the test members.
-                throw new RuntimeException(
-                        "Couldn't log in saved merchantMember, not found. Remove keys dir and try again.");
-            } else {
-                throw new RuntimeException(sre);
+            return new CachingKeyStore(
+                    keys,
+                    files,
+                    Settings.getBoolean("keystore.write-through", true),
+                    Settings.getBoolean("keystore.watch", true),
+                    Settings.getLong("keystore.reload-delay-ms", 500),
+                    metrics);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static FakeTokenGateway newFakeTokenGateway() {
+        return new FakeTokenGateway(
+                Settings.getLong("fake.latency-ms", 50),
+                Settings.getLong("fake.latency-jitter-ms", 50),
+                Double.parseDouble(Settings.getString("fake.error-rate", "0")),
+                Settings.getInt("fake.threads", 4),
+                Settings.getLong("fake.settle-ms", 5_000));
+    }
+
+    /**
+     * Returns the merchant a request is for.
+     *
+     * @param req request
+     * @return merchant
+     */
+    private static Merchant merchant(spark.Request req) {
+        if (defaultMerchant != null) {
+            return defaultMerchant;
+        }
+        String key = MERCHANT_ROUTING == MerchantRouting.PATH
+                ? req.params("merchant")
+                : req.host();
+        if (key == null) {
+            throw new UnknownMerchantException("No merchant in request");
+        }
+        if (MERCHANT_ROUTING == MerchantRouting.HOST) {
+            // one cache entry per configured host, whatever port the client put in the header
+            key = key.replaceFirst(":\\d+$", "");
+            if (!MERCHANT_HOSTS.containsKey(key)) {
+                throw new UnknownMerchantException("Unknown merchant " + key);
             }
         }
+        return merchants.get(key);
+    }
+
+    /**
+     * Returns the path the merchant's routes are under.
+     */
+    private static String merchantPath(Merchant merchant) {
+        return MERCHANT_ROUTING == MerchantRouting.PATH ? "/merchants/" + merchant.getKey() : "";
+    }
+
+    /**
+     * Tells whether a payment record was written for the merchant of the request, so that one
+     * merchant's payments can't be read under another's path or host.
+     *
+     * @param merchantKey key the record is tagged with; null for records written before merchants
+     *     were recorded, which only the single merchant may read
+     */
+    private static boolean isOwnedBy(Merchant merchant, String merchantKey) {
+        return merchantKey == null
+                ? MERCHANT_ROUTING == MerchantRouting.SINGLE
+                : merchantKey.equals(merchant.getKey());
+    }
+
+    /**
+     * Returns a reader over the request body that decodes it as it arrives, without first
+     * copying it into memory.
+     *
+     * @param req request
+     * @return body reader
+     * @throws IOException if the body can't be read
+     */
+    private static Reader body(spark.Request req) throws IOException {
+        // Spark's wrapper buffers the whole body unless it's chunked; read from Jetty's request
+        ServletRequest request = req.raw();
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+        return new InputStreamReader(request.getInputStream(), UTF_8);
     }
 
     /**
-     * Using a TokenClient SDK client, create a new Member. This has the side effect of storing the
-     * new Member's private keys in the ./keys directory.
+     * Loads a merchant of a multi-merchant server: logs its member in with the keys in the
+     * keystore, registers the merchant's redirect URLs and sets up its metadata and redemption
+     * pipeline. The SDK calls go through the {@code member-load} bulkhead. Called once per
+     * merchant by the {@link MerchantCache}.
      *
-     * @param tokenClient Token SDK client
-     * @return newly-created merchantMember
+     * @param key keystore directory name with path routing, configured host without a port with
+     *     host routing
+     * @return merchant
      */
-    private static Member createMember(TokenClient tokenClient) {
-        // Generate a random username.
-        // If we try to create a merchantMember with an already-used name,
-        // it will fail.
-        // If a domain alias is used instead of an email, please contact Token
-        // with the domain and merchantMember ID for verification.
-        // See https://developer.token.io/sdk/#aliases for more information.
-        String email = "msjava-" + generateNonce().toLowerCase() + "+noverify@example.com";
-        Alias alias = Alias.newBuilder().setType(DOMAIN).setValue(email).build();
-        Member member = tokenClient.createMemberBlocking(alias);
-        // set merchantMember profile: the name and the profile picture
-        member.setProfileNameBlocking("Demo Merchant");
+    private static Merchant loadMerchant(String key) {
+        String memberId;
+        String redirectBaseUrl;
+        if (MERCHANT_ROUTING == MerchantRouting.PATH) {
+            memberId = key.replace("_", ":");
+            redirectBaseUrl = BASE_URL + "/merchants/" + key;
+        } else {
+            memberId = MERCHANT_HOSTS.get(key);
+            redirectBaseUrl = MERCHANT_ORIGINS.getOrDefault(
+                    key,
+                    Settings.getString("merchant.host-scheme", "http") + "://" + key);
+        }
+        if (memberId == null) {
+            throw new UnknownMerchantException("Unknown merchant " + key);
+        }
+        if (fake != null) {
+            return newMerchant(key, fake, redirectBaseUrl);
+        }
+        if (!Files.isDirectory(Paths.get("./keys", memberId.replace(":", "_")))) {
+            // don't ask Token about members we hold no keys for
+            throw new UnknownMerchantException("Unknown merchant " + key);
+        }
+        Member member;
         try {
-            byte[] pict = Resources.toByteArray(Resources.getResource("southside.png"));
-            member.setProfilePictureBlocking("image/png", pict);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            member = await(memberLoadBulkhead.call(() -> Futures.fromBlocking(() ->
+                    tokenClients.primary().getMemberBlocking(memberId))));
+        } catch (StatusRuntimeException sre) {
+            if (sre.getStatus().getCode() == NOT_FOUND) {
+                throw new UnknownMerchantException("Merchant " + key + " no longer exists");
+            }
+            throw sre;
         }
-        List<String> redirectUrls = Stream.of(
-                "/redeem",
-                "/redeem-popup",
-                "/redeem-standing-order",
-                "/redeem-standing-order-popup",
-                "/redirect-one-step-payment",
-                "/redirect-one-step-payment-popup")
-                .map(endpoint -> BASE_URL + endpoint)
+        // the callbacks of this merchant's token requests come back under its own base URL
+        List<String> redirectUrls = REDIRECT_PATHS.stream()
+                .map(path -> redirectBaseUrl + path)
                 .collect(Collectors.toList());
-        member.addRedirectUrlsBlocking(redirectUrls);
-        return member;
-        // The newly-created merchantMember is automatically logged in.
+        await(memberLoadBulkhead.call(() -> Futures.fromBlocking(() -> {
+            member.addRedirectUrlsBlocking(redirectUrls);
+            return null;
+        })));
+        // the copies of the member on the other channels are loaded under the same bulkhead
+        TokenGateway backend = tokenClients.gateway(
+                EXECUTION_MODE,
+                member,
+                client -> await(memberLoadBulkhead.call(() -> Futures.fromBlocking(() ->
+                        client.getMemberBlocking(memberId)))));
+        return newMerchant(key, backend, redirectBaseUrl);
     }
 
     /**
-     * Log in existing merchantMember or create new merchantMember.
-     *
-     * @param tokenClient Token SDK client
-     * @return Logged-in merchantMember
+     * Sets up a merchant over the gateway of its member. The bulkheads, redemption tables and
+     * metrics are shared by all merchants.
      */
-    private static Member initializeMember(TokenClient tokenClient) {
-        // The UnsecuredFileSystemKeyStore stores keys in a directory
-        // named on the merchantMember's memberId, but with ":" replaced by "_".
-        // Look for such a directory.
-        // If found, try to log in with that memberId
-        // If not found, create a new merchantMember.
-        File keysDir = new File("./keys");
-        String[] paths = keysDir.list();
+    private static Merchant newMerchant(String key, TokenGateway backend, String redirectBaseUrl) {
+        TokenGateway gateway = new BulkheadTokenGateway(
+                new InstrumentedTokenGateway(backend, metrics),
+                tokenRequestBulkhead,
+                redeemBulkhead,
+                standingOrderBulkhead,
+                transferStatusBulkhead);
+        return new Merchant(
+                key,
+                gateway,
+                new MemberMetadataCache(
+                        gateway,
+                        redirectBaseUrl,
+                        Settings.getLong("member.metadata-ttl-ms", 10 * 60 * 1000)),
+                new RedeemPipeline(
+                        gateway,
+                        Settings.getBoolean("redeem.direct", true),
+                        stateStore,
+                        Settings.getLong("redeem.pending-request-ttl-ms", 60 * 60 * 1000),
+                        Settings.getLong("redeem.token-cache-size", 10_000),
+                        Settings.getLong("redeem.token-cache-ttl-ms", 5 * 60 * 1000),
+                        redeemedTransfers,
+                        redeemedStandingOrders));
+    }
+
+    private static CompletableFuture<?> memberReady() {
+        return backend instanceof LazyTokenGateway
+                ? ((LazyTokenGateway) backend).ready()
+                : CompletableFuture.completedFuture(null);
+    }
+
+    private static String healthJson(String status, CompletableFuture<?> ready) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("status", status);
+        json.put("startup", MEMBER_STARTUP.name());
+        if (ready.isCompletedExceptionally()) {
+            json.put("error", String.valueOf(ready.handle((value, error) ->
+                    Futures.unwrap(error).getMessage()).join()));
+        }
+        return new Gson().toJson(json);
+    }
 
-        return Arrays.stream(paths).filter(p -> p.contains("_")) // find dir names containing "_"
-                .map(p -> p.replace("_", ":")) // merchantMember ID
-                .findFirst().map(memberId -> loadMember(tokenClient, memberId))
-                .orElseGet(() -> createMember(tokenClient));
+    private static String memberMetadataJson(
+            MemberMetadataCache memberMetadata,
+            MemberMetadata metadata) {
+        long urlsGenerated = tokenRequestUrls == null ? 0 : tokenRequestUrls.remoteCallsAvoided();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("memberId", metadata.getMemberId());
+        json.put("alias", metadata.getAlias().getValue());
+        json.put("redirectBaseUrl", metadata.getRedirectBaseUrl());
+        json.put("loadedAtMs", metadata.getLoadedAtMs());
+        json.put("remoteCallsAvoided", memberMetadata.remoteCallsAvoided() + urlsGenerated);
+        return new Gson().toJson(json);
     }
 
-    private static Map<String, String> toMap(QueryParamsMap queryData) {
-        return queryData.toMap().entrySet().stream()
-                .collect(Collectors.toMap(entry -> entry.getKey(), entry -> entry.getValue()[0]));
+    private static String journalRecordJson(JournalRecord record) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("event", record.getEvent().name());
+        json.put("type", record.getType());
+        json.put("refId", record.getRefId());
+        json.put("tokenRequestId", record.getTokenRequestId());
+        json.put("tokenId", record.getTokenId());
+        json.put("resultId", record.getResultId());
+        json.put("error", record.getError());
+        json.put("sequence", record.getSequence());
+        json.put("timestampMs", record.getTimestampMs());
+        return new Gson().toJson(json);
     }
+
+    private static String paymentStatusJson(PaymentStatus status) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("refId", status.getRefId());
+        json.put("tokenId", status.getTokenId());
+        json.put("type", status.getType());
+        json.put("state", status.getState().name());
+        json.put("resultId", status.getResultId());
+        json.put("error", status.getError());
+        json.put("attempts", status.getAttempts());
+        json.put("updatedAtMs", status.getUpdatedAtMs());
+        json.put("queueDepth", redemptionQueue.depth());
+        return new Gson().toJson(json);
+    }
+
+    private static String transferStatusJson(TransferTracker.Snapshot status) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("transferId", status.getTransferId());
+        json.put("status", status.getStatus().name());
+        json.put("terminal", status.isTerminal());
+        json.put("polls", status.getPolls());
+        json.put("nextPollAtMs", status.getNextPollAtMs() == 0 ? null : status.getNextPollAtMs());
+        json.put("tracked", transferTracker.size());
+        return new Gson().toJson(json);
+    }
+
 }
@@ -0,0 +1,85 @@
+package io.token.sample;
+
+import static io.token.sample.Futures.fromObservable;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.Member;
+import io.token.tpp.TokenClient;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link TokenGateway} that uses the non-blocking SDK calls. Results are delivered on the gRPC
+ * callback threads, so chained calls never occupy a Jetty worker while in flight.
+ */
+class AsyncTokenGateway implements TokenGateway {
+    private final TokenClient tokenClient;
+    private final Member member;
+
+    AsyncTokenGateway(TokenClient tokenClient, Member member) {
+        this.tokenClient = tokenClient;
+        this.member = member;
+    }
+
+    @Override
+    public String memberId() {
+        return member.memberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return fromObservable(member.firstAlias());
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return fromObservable(member.storeTokenRequest(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return fromObservable(tokenClient.generateTokenRequestUrl(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return fromObservable(
+                tokenClient.parseTokenRequestCallbackUrl(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return fromObservable(
+                tokenClient.parseTokenRequestCallbackParams(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return fromObservable(member.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return fromObservable(member.redeemToken(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return fromObservable(member.redeemStandingOrderToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return fromObservable(member.getTransfer(transferId));
+    }
+}
@@ -0,0 +1,143 @@
+package io.token.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Runs the items of a batch request concurrently and streams each result back, as one line of
+ * NDJSON, as soon as it completes.
+ *
+ * <p>Items are read one at a time from either a JSON array or NDJSON, and at most
+ * {@code parallelism} of them are in flight; reading stops while that many are pending, so
+ * neither the batch nor its results are ever held in memory as a whole. Each result line
+ * carries the item's zero-based {@code index}, and either the handler's fields or an
+ * {@code error}.
+ */
+final class BatchProcessor {
+    private static final Gson gson = new Gson();
+
+    private final int parallelism;
+
+    /**
+     * Creates a processor.
+     *
+     * @param parallelism maximum number of items in flight
+     */
+    BatchProcessor(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Processes a batch.
+     *
+     * @param body JSON array or NDJSON of payment objects
+     * @param out where the NDJSON results are written
+     * @param handler processes one item
+     * @return number of items read
+     * @throws InterruptedException if interrupted while waiting for items to complete
+     */
+    int process(
+            Reader body,
+            Writer out,
+            Function<PaymentRequest, CompletableFuture<Map<String, Object>>> handler)
+            throws InterruptedException {
+        Semaphore permits = new Semaphore(parallelism);
+        Output output = new Output(out);
+        int index = 0;
+        try {
+            JsonReader reader = new JsonReader(body);
+            // NDJSON is a sequence of top-level values, which only the lenient reader accepts
+            reader.setLenient(true);
+            JsonToken first;
+            try {
+                first = reader.peek();
+            } catch (EOFException e) {
+                // an empty body is an empty batch
+                return 0;
+            }
+            boolean array = first == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+                PaymentRequest item;
+                try {
+                    item = PaymentRequest.read(reader);
+                } catch (InvalidRequestException e) {
+                    // the item was read in full, so the rest of the batch can go on
+                    output.write(index++, null, e);
+                    continue;
+                }
+                permits.acquire();
+                int itemIndex = index++;
+                start(handler, item).whenComplete((result, error) -> {
+                    output.write(itemIndex, result, error);
+                    permits.release();
+                });
+            }
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            // the rest of the stream can't be trusted; report and stop reading
+            output.write(index, null, new IllegalArgumentException("Malformed batch", e));
+        }
+        permits.acquire(parallelism);
+        return index;
+    }
+
+    private static CompletableFuture<Map<String, Object>> start(
+            Function<PaymentRequest, CompletableFuture<Map<String, Object>>> handler,
+            PaymentRequest item) {
+        try {
+            return handler.apply(item);
+        } catch (RuntimeException e) {
+            CompletableFuture<Map<String, Object>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static final class Output {
+        private final Writer out;
+        private boolean closed;
+
+        private Output(Writer out) {
+            this.out = out;
+        }
+
+        private synchronized void write(int index, Map<String, Object> result, Throwable error) {
+            if (closed) {
+                return;
+            }
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("index", index);
+            if (error != null) {
+                Throwable cause = Futures.unwrap(error);
+                line.put("error", cause.getMessage() != null
+                        ? cause.getMessage()
+                        : cause.getClass().getSimpleName());
+            } else {
+                line.putAll(result);
+            }
+            try {
+                out.write(gson.toJson(line));
+                out.write('\n');
+                // flushed per line so the client sees each result as it completes
+                out.flush();
+            } catch (IOException e) {
+                // the client went away; let the remaining items finish quietly
+                closed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.token.sample;
+
+import static io.token.sample.Futures.fromBlocking;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.Member;
+import io.token.tpp.TokenClient;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link TokenGateway} that makes the {@code *Blocking} SDK calls on the calling thread and
+ * returns already-completed futures.
+ */
+class BlockingTokenGateway implements TokenGateway {
+    private final TokenClient tokenClient;
+    private final Member member;
+
+    BlockingTokenGateway(TokenClient tokenClient, Member member) {
+        this.tokenClient = tokenClient;
+        this.member = member;
+    }
+
+    @Override
+    public String memberId() {
+        return member.memberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return fromBlocking(member::firstAliasBlocking);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return fromBlocking(() -> member.storeTokenRequestBlocking(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return fromBlocking(() -> tokenClient.generateTokenRequestUrlBlocking(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return fromBlocking(() ->
+                tokenClient.parseTokenRequestCallbackUrlBlocking(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return fromBlocking(() ->
+                tokenClient.parseTokenRequestCallbackParamsBlocking(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return fromBlocking(() -> member.getTokenBlocking(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return fromBlocking(() -> member.redeemTokenBlocking(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return fromBlocking(() -> member.redeemStandingOrderTokenBlocking(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return fromBlocking(() -> member.getTransferBlocking(transferId));
+    }
+}
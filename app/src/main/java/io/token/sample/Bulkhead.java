@@ -0,0 +1,253 @@
+package io.token.sample;
+
+import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
+import static io.grpc.Status.Code.INTERNAL;
+import static io.grpc.Status.Code.RESOURCE_EXHAUSTED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Isolates one kind of SDK call from the others, so that a slow or failing operation can't
+ * take every request thread with it.
+ *
+ * <p>A bulkhead admits at most {@code maxConcurrent} calls at once and fails the rest fast
+ * with {@link SdkUnavailableException} rather than letting them pile up. Admitted calls get a
+ * deadline, and a {@link CircuitBreaker} stops calls altogether while the backend keeps
+ * failing. With {@code isolated} set the calls run on the bulkhead's own
+ * {@code maxConcurrent} threads, with up to {@code maxQueued} more waiting for one; this is
+ * what gives blocking SDK calls a deadline, since the request thread can then stop waiting.
+ *
+ * <p>A call that misses its deadline fails right away, but keeps its permit until it actually
+ * finishes: a call still waiting for a thread is dropped, a blocking call is interrupted, and a
+ * non-blocking one runs until its gRPC deadline. Calls that outlive their deadline therefore
+ * still count against {@code maxConcurrent}, so a slow backend can't pile up unbounded work.
+ */
+final class Bulkhead {
+    private static final Set<Status.Code> BACKEND_FAILURES =
+            EnumSet.of(UNAVAILABLE, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED, INTERNAL);
+    private static final ScheduledExecutorService deadlines = newDeadlineExecutor();
+
+    private final String name;
+    private final Semaphore permits;
+    private final long deadlineMs;
+    private final CircuitBreaker breaker;
+    private final ExecutorService executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejectedFull;
+    private final LongAdder rejectedOpen;
+    private final LongAdder timedOut;
+
+    /**
+     * Creates the bulkhead.
+     *
+     * @param name operation name, used in metrics and thread names
+     * @param maxConcurrent maximum number of calls in flight
+     * @param maxQueued maximum number of isolated calls waiting for a thread
+     * @param deadlineMs how long a call may take before it fails with
+     *     {@code DEADLINE_EXCEEDED}
+     * @param breaker circuit breaker for the operation
+     * @param isolated whether to run calls on the bulkhead's own threads
+     * @param metrics metrics registry
+     */
+    Bulkhead(
+            String name,
+            int maxConcurrent,
+            int maxQueued,
+            long deadlineMs,
+            CircuitBreaker breaker,
+            boolean isolated,
+            Metrics metrics) {
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent + (isolated ? maxQueued : 0));
+        this.deadlineMs = deadlineMs;
+        this.breaker = breaker;
+        this.executor = isolated
+                ? new ThreadPoolExecutor(
+                        maxConcurrent,
+                        maxConcurrent,
+                        60,
+                        TimeUnit.SECONDS,
+                        // bounded by the permits
+                        new LinkedBlockingQueue<>(),
+                        daemon("bulkhead-" + name))
+                : null;
+        this.rejectedFull = metrics.counter(
+                "merchant_bulkhead_rejected_total",
+                "SDK calls rejected because their bulkhead was full, by operation.",
+                "operation",
+                name);
+        this.rejectedOpen = metrics.counter(
+                "merchant_bulkhead_short_circuited_total",
+                "SDK calls rejected because their circuit breaker was open, by operation.",
+                "operation",
+                name);
+        this.timedOut = metrics.counter(
+                "merchant_bulkhead_timeouts_total",
+                "SDK calls that missed their bulkhead deadline, by operation.",
+                "operation",
+                name);
+        metrics.gauge(
+                "merchant_bulkhead_in_flight",
+                "SDK calls admitted by a bulkhead and not yet finished, by operation.",
+                "operation",
+                name,
+                inFlight::get);
+        metrics.gauge(
+                "merchant_bulkhead_circuit_open",
+                "1 while the circuit breaker of a bulkhead rejects calls, by operation.",
+                "operation",
+                name,
+                () -> breaker.state() == CircuitBreaker.State.OPEN ? 1 : 0);
+    }
+
+    /**
+     * Makes a call through the bulkhead.
+     *
+     * @param call SDK call
+     * @param <T> result type
+     * @return result of the call, or a future failed with {@link SdkUnavailableException} if the
+     *     call was rejected or missed its deadline
+     */
+    <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+        if (!breaker.tryAcquire()) {
+            rejectedOpen.increment();
+            return reject(
+                    Status.UNAVAILABLE.withDescription(name + " is failing, not calling it"),
+                    breaker.remainingOpenMs());
+        }
+        if (!permits.tryAcquire()) {
+            breaker.onIgnored();
+            rejectedFull.increment();
+            return reject(Status.UNAVAILABLE.withDescription(name + " is at capacity"), 0);
+        }
+        inFlight.incrementAndGet();
+        // the permit is held until the call itself finishes, not just until its deadline, so
+        // calls that outlive their deadline still count against the limit
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                permits.release();
+            }
+        };
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // claimed by whichever comes first: the call starting, or its deadline
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> task = executor == null
+                ? null
+                : executor.submit(() -> {
+                    if (started.compareAndSet(false, true)) {
+                        start(call, result, release);
+                    }
+                });
+        if (task == null) {
+            started.set(true);
+            start(call, result, release);
+        }
+        ScheduledFuture<?> deadline = deadlines.schedule(() -> {
+            if (result.completeExceptionally(new SdkUnavailableException(
+                    Status.DEADLINE_EXCEEDED.withDescription(
+                            name + " took longer than " + deadlineMs + "ms"),
+                    1))) {
+                timedOut.increment();
+                if (started.compareAndSet(false, true)) {
+                    // never started, and now never will
+                    release.run();
+                } else if (task != null) {
+                    // interrupts a blocking call; the permit is released once it returns
+                    task.cancel(true);
+                }
+            }
+        }, deadlineMs, TimeUnit.MILLISECONDS);
+
+        return result.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (error == null) {
+                breaker.onSuccess();
+            } else if (isBackendFailure(Futures.unwrap(error))) {
+                breaker.onFailure();
+            } else {
+                breaker.onIgnored();
+            }
+        });
+    }
+
+    private static <T> void start(
+            Supplier<CompletableFuture<T>> call,
+            CompletableFuture<T> result,
+            Runnable release) {
+        CompletableFuture<T> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException e) {
+            release.run();
+            result.completeExceptionally(e);
+            return;
+        }
+        started.whenComplete((value, error) -> {
+            release.run();
+            if (error != null) {
+                result.completeExceptionally(Futures.unwrap(error));
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> reject(Status status, long retryAfterMs) {
+        CompletableFuture<T> rejected = new CompletableFuture<>();
+        long retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMs + 999));
+        rejected.completeExceptionally(new SdkUnavailableException(status, retryAfterSeconds));
+        return rejected;
+    }
+
+    private static boolean isBackendFailure(Throwable error) {
+        if (error instanceof TimeoutException) {
+            return true;
+        }
+        return error instanceof StatusRuntimeException && BACKEND_FAILURES.contains(
+                ((StatusRuntimeException) error).getStatus().getCode());
+    }
+
+    /**
+     * Most calls finish well before their deadline, so cancelled timers are removed at once
+     * instead of holding on to the call until the full deadline has passed.
+     */
+    private static ScheduledExecutorService newDeadlineExecutor() {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1, daemon("bulkhead-deadlines"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package io.token.sample;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link TokenGateway} decorator that sends each SDK call through the {@link Bulkhead} of its
+ * operation: creating token requests, redeeming transfer tokens (including the callback
+ * verification that precedes it), redeeming standing-order tokens and looking up transfer
+ * statuses. A degraded operation then fails fast on its own while the others keep working.
+ */
+final class BulkheadTokenGateway implements TokenGateway {
+    private final TokenGateway delegate;
+    private final Bulkhead tokenRequest;
+    private final Bulkhead redeem;
+    private final Bulkhead standingOrder;
+    private final Bulkhead transferStatus;
+
+    BulkheadTokenGateway(
+            TokenGateway delegate,
+            Bulkhead tokenRequest,
+            Bulkhead redeem,
+            Bulkhead standingOrder,
+            Bulkhead transferStatus) {
+        this.delegate = delegate;
+        this.tokenRequest = tokenRequest;
+        this.redeem = redeem;
+        this.standingOrder = standingOrder;
+        this.transferStatus = transferStatus;
+    }
+
+    @Override
+    public String memberId() {
+        return delegate.memberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return tokenRequest.call(delegate::firstAlias);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return tokenRequest.call(() -> delegate.storeTokenRequest(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return tokenRequest.call(() -> delegate.generateTokenRequestUrl(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return redeem.call(() -> delegate.parseTokenRequestCallbackUrl(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return redeem.call(() ->
+                delegate.parseTokenRequestCallbackParams(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return redeem.call(() -> delegate.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return redeem.call(() -> delegate.redeemToken(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return standingOrder.call(() -> delegate.redeemStandingOrderToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return transferStatus.call(() -> delegate.getTransfer(transferId));
+    }
+}
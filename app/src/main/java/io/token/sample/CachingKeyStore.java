@@ -0,0 +1,256 @@
+package io.token.sample;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.token.proto.common.security.SecurityProtos.Key;
+import io.token.security.KeyStore;
+import io.token.security.SecretKey;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the members' private keys from memory, so that signing an SDK call never waits for
+ * the disk.
+ *
+ * <p>All keys under the keys directory are loaded through the file store when the keystore is
+ * created, into an immutable snapshot that lookups read without locking. Writes replace the
+ * snapshot with a copy. With {@code writeThrough}, new keys are also saved through the file
+ * store before they're used; without it, they live only in memory and are lost on restart.
+ *
+ * <p>With {@code watch}, a background thread watches the keys directory and, once changes
+ * have settled for {@code reloadDelayMs}, reloads every member's keys and swaps in the new
+ * snapshot at once, so keys rotated by another process are picked up without a restart. A
+ * lookup that misses the snapshot falls back to the file store.
+ */
+final class CachingKeyStore implements KeyStore {
+    private static final Logger logger = LoggerFactory.getLogger(CachingKeyStore.class);
+
+    private final Path dir;
+    private final KeyStore files;
+    private final boolean writeThrough;
+    private final long reloadDelayMs;
+    private final Clock clock = Clock.systemUTC();
+    // keys that were put without writing them through, kept across reloads
+    private final Map<String, List<SecretKey>> unsaved = new HashMap<>();
+    private final LongAdder reloads;
+    private final LongAdder misses;
+    private volatile ImmutableMap<String, ImmutableList<SecretKey>> keys;
+    // bumped by every write, so a reload that raced one can tell and start over
+    private long writes;
+
+    /**
+     * Loads the keys and, if asked to, starts watching the directory.
+     *
+     * @param dir keys directory, with one subdirectory per member
+     * @param files file store over the same directory
+     * @param writeThrough whether new keys are saved through the file store
+     * @param watch whether to reload the keys when the directory changes
+     * @param reloadDelayMs how long changes must settle before a reload
+     * @param metrics metrics registry
+     * @throws IOException if the directory can't be read or watched
+     */
+    CachingKeyStore(
+            Path dir,
+            KeyStore files,
+            boolean writeThrough,
+            boolean watch,
+            long reloadDelayMs,
+            Metrics metrics) throws IOException {
+        this.dir = dir;
+        this.files = files;
+        this.writeThrough = writeThrough;
+        this.reloadDelayMs = reloadDelayMs;
+        this.reloads = metrics.counter(
+                "merchant_keystore_reloads_total",
+                "Reloads of the cached keys after the keys directory changed.",
+                "keystore",
+                "keys");
+        this.misses = metrics.counter(
+                "merchant_keystore_misses_total",
+                "Key lookups that missed the cache and went to the file store.",
+                "keystore",
+                "keys");
+        reload();
+        metrics.gauge(
+                "merchant_keystore_members",
+                "Members whose keys are cached.",
+                () -> keys.size());
+        if (watch) {
+            WatchService watcher = dir.getFileSystem().newWatchService();
+            register(watcher, dir);
+            Thread thread = new Thread(() -> watch(watcher), "keystore-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public SecretKey put(String memberId, SecretKey key) {
+        if (writeThrough) {
+            files.put(memberId, key);
+        }
+        synchronized (this) {
+            writes++;
+            if (!writeThrough) {
+                unsaved.put(memberId, with(unsaved.get(memberId), key));
+            }
+            Map<String, ImmutableList<SecretKey>> copy = new HashMap<>(keys);
+            copy.put(memberId, with(copy.get(memberId), key));
+            keys = ImmutableMap.copyOf(copy);
+        }
+        return key;
+    }
+
+    @Override
+    public SecretKey getByLevel(String memberId, Key.Level keyLevel) {
+        // newest first, so a rotated key wins over the one it replaces
+        for (SecretKey key : keys.getOrDefault(memberId, ImmutableList.of()).reverse()) {
+            if (key.getLevel() == keyLevel && !key.isExpired(clock)) {
+                return key;
+            }
+        }
+        misses.increment();
+        return files.getByLevel(memberId, keyLevel);
+    }
+
+    @Override
+    public SecretKey getById(String memberId, String keyId) {
+        for (SecretKey key : keys.getOrDefault(memberId, ImmutableList.of())) {
+            if (key.getId().equals(keyId)) {
+                return key;
+            }
+        }
+        misses.increment();
+        return files.getById(memberId, keyId);
+    }
+
+    @Override
+    public List<SecretKey> listKeys(String memberId) {
+        List<SecretKey> cached = keys.get(memberId);
+        if (cached == null) {
+            misses.increment();
+            return files.listKeys(memberId);
+        }
+        return cached;
+    }
+
+    @Override
+    public void deleteKeys(String memberId) {
+        files.deleteKeys(memberId);
+        synchronized (this) {
+            writes++;
+            unsaved.remove(memberId);
+            Map<String, ImmutableList<SecretKey>> copy = new HashMap<>(keys);
+            copy.remove(memberId);
+            keys = ImmutableMap.copyOf(copy);
+        }
+    }
+
+    private void reload() throws IOException {
+        while (true) {
+            long start;
+            synchronized (this) {
+                start = writes;
+            }
+            Map<String, ImmutableList<SecretKey>> loaded = new HashMap<>();
+            try (DirectoryStream<Path> members =
+                    Files.newDirectoryStream(dir, Files::isDirectory)) {
+                for (Path member : members) {
+                    // the file store names a member's directory after its ID, with "_" for ":"
+                    String memberId = member.getFileName().toString().replace("_", ":");
+                    List<SecretKey> memberKeys = files.listKeys(memberId);
+                    if (memberKeys != null && !memberKeys.isEmpty()) {
+                        loaded.put(memberId, ImmutableList.copyOf(memberKeys));
+                    }
+                }
+            }
+            synchronized (this) {
+                if (writes != start) {
+                    // a key was put or deleted while reading; the files may predate it
+                    continue;
+                }
+                for (Map.Entry<String, List<SecretKey>> entry : unsaved.entrySet()) {
+                    ImmutableList<SecretKey> merged = loaded.get(entry.getKey());
+                    for (SecretKey key : entry.getValue()) {
+                        merged = with(merged, key);
+                    }
+                    loaded.put(entry.getKey(), merged);
+                }
+                keys = ImmutableMap.copyOf(loaded);
+                return;
+            }
+        }
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey changed = watcher.take();
+                // let a rotation finish writing all its files before reading them
+                while (changed != null) {
+                    // a key with undrained events is queued again right away by reset()
+                    changed.pollEvents();
+                    changed.reset();
+                    changed = watcher.poll(reloadDelayMs, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    register(watcher, dir);
+                    reload();
+                    reloads.increment();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Reloading keys from {} failed", dir, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Watches the directory and each member directory in it; registering a directory twice
+     * is harmless, so new member directories are picked up by calling this again.
+     */
+    private static void register(WatchService watcher, Path dir) throws IOException {
+        dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        try (DirectoryStream<Path> members = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path member : members) {
+                member.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+
+    private static ImmutableList<SecretKey> with(List<SecretKey> current, SecretKey key) {
+        List<SecretKey> keys = new ArrayList<>();
+        if (current != null) {
+            for (SecretKey existing : current) {
+                if (!existing.getId().equals(key.getId())) {
+                    keys.add(existing);
+                }
+            }
+        }
+        keys.add(key);
+        return ImmutableList.copyOf(keys);
+    }
+}
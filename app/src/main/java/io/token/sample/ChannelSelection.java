@@ -0,0 +1,18 @@
+package io.token.sample;
+
+/**
+ * How an SDK call picks one of the {@link TokenClientPool}'s channels, selected with the
+ * {@code token.channel-selection} setting.
+ */
+enum ChannelSelection {
+    /**
+     * Channels take calls in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * A call goes to the channel with the fewest calls in flight, so a channel stalled on slow
+     * calls gets fewer new ones.
+     */
+    LEAST_IN_FLIGHT
+}
@@ -0,0 +1,87 @@
+package io.token.sample;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling a failing backend for a while. After {@code failureThreshold} consecutive
+ * failures the breaker opens and rejects calls for {@code openMs}; it then lets a single trial
+ * call through, which closes it again on success and reopens it on failure.
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMs;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openUntilMs = new AtomicLong();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMs how long the breaker stays open before a trial call
+     */
+    CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * Asks to make a call. Every permitted call must be followed by {@link #onSuccess()} or
+     * {@link #onFailure()}, or by {@link #onIgnored()} if its outcome says nothing about the
+     * backend.
+     *
+     * @return whether the call may be made
+     */
+    boolean tryAcquire() {
+        long until = openUntilMs.get();
+        if (until == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        return trialInFlight.compareAndSet(false, true);
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        openUntilMs.set(0);
+        trialInFlight.set(false);
+    }
+
+    void onFailure() {
+        if (trialInFlight.get() || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openUntilMs.set(System.currentTimeMillis() + openMs);
+            trialInFlight.set(false);
+        }
+    }
+
+    void onIgnored() {
+        trialInFlight.set(false);
+    }
+
+    /**
+     * How long until the breaker lets a trial call through.
+     *
+     * @return milliseconds, or 0 if calls may be made now
+     */
+    long remainingOpenMs() {
+        return Math.max(0, openUntilMs.get() - System.currentTimeMillis());
+    }
+
+    State state() {
+        long until = openUntilMs.get();
+        if (until == 0) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() < until ? State.OPEN : State.HALF_OPEN;
+    }
+}
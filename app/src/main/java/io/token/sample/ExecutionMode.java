@@ -0,0 +1,25 @@
+package io.token.sample;
+
+/**
+ * How the routes talk to the Token SDK, selected with the {@code execution.mode} setting.
+ *
+ * <p>In both modes a route holds its Jetty worker thread until the response is ready; request
+ * handling is thread-per-request either way. The modes differ in which threads make the SDK
+ * calls, and so in how many Jetty workers it takes to keep a given number of calls in flight.
+ */
+enum ExecutionMode {
+    /**
+     * Every SDK call uses its {@code *Blocking} variant, run on a thread of its operation's
+     * {@link Bulkhead} while the Jetty worker waits for it.
+     */
+    BLOCKING,
+
+    /**
+     * SDK calls use the non-blocking variants and are chained on the gRPC callback threads, so
+     * no bulkhead threads are needed, but the Jetty worker still parks until the composed result
+     * of the request is ready. In practice this is a thread-pool setting: a request costs a
+     * parked Jetty worker rather than a busy bulkhead thread, and the Jetty pool defaults to a
+     * much larger size.
+     */
+    ASYNC
+}
@@ -0,0 +1,322 @@
+package io.token.sample;
+
+import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
+import static io.token.util.Util.generateNonce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.token.TokenProtos.TokenPayload;
+import io.token.proto.common.token.TokenProtos.TokenRequestPayload;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * In-process stand-in for the Token cloud, selected with {@code token.backend=FAKE}, for load
+ * testing without touching the Sandbox.
+ *
+ * <p>It stores token requests, issues a token when a request is approved at
+ * {@value #APPROVAL_PATH}{@code {requestId}} (which redirects straight back to the merchant's
+ * callback, as the Token web app would after the shopper approves), and redeems tokens. Every
+ * call is answered after a configurable latency and fails with {@code UNAVAILABLE} at a
+ * configurable rate. Latency is injected with a scheduler, so the fake itself holds no thread
+ * while a call is "in flight".
+ *
+ * <p>Callbacks are checked against the state of the token request they belong to, and must
+ * carry a CSRF cookie; unlike the SDK, the fake does not verify the CSRF token's hash.
+ */
+final class FakeTokenGateway implements TokenGateway {
+    static final String APPROVAL_PATH = "/fake-token/request-token/";
+
+    private final String memberId = "m:fake:" + generateNonce();
+    private final Alias alias = Alias.newBuilder()
+            .setType(DOMAIN)
+            .setValue("fake-merchant+noverify@example.com")
+            .build();
+    private final long latencyMs;
+    private final long latencyJitterMs;
+    private final double errorRate;
+    private final ScheduledExecutorService scheduler;
+    private final Cache<String, TokenRequestPayload> requests;
+    private final Cache<String, FakeToken> tokens;
+    // redemption time by transfer ID
+    private final Cache<String, Long> transfers;
+    private final long settleMs;
+
+    /**
+     * Creates a fake.
+     *
+     * @param latencyMs minimum latency of every call
+     * @param latencyJitterMs random extra latency, up to this many milliseconds
+     * @param errorRate fraction of calls that fail, between 0 and 1
+     * @param threads number of threads completing calls
+     * @param settleMs how long a redeemed transfer stays {@code PROCESSING} before it succeeds
+     */
+    FakeTokenGateway(
+            long latencyMs,
+            long latencyJitterMs,
+            double errorRate,
+            int threads,
+            long settleMs) {
+        this.latencyMs = latencyMs;
+        this.settleMs = settleMs;
+        this.latencyJitterMs = latencyJitterMs;
+        this.errorRate = errorRate;
+        AtomicInteger count = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "fake-token-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.requests = CacheBuilder.newBuilder()
+                .maximumSize(1_000_000)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .build();
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(1_000_000)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .build();
+        this.transfers = CacheBuilder.newBuilder()
+                .maximumSize(1_000_000)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .build();
+    }
+
+    /**
+     * Approves a stored token request on behalf of the shopper.
+     *
+     * @param requestId token request ID
+     * @return the merchant callback URL carrying the new token, or null if the request is
+     *     unknown
+     */
+    String approve(String requestId) {
+        TokenRequestPayload request = requests.getIfPresent(requestId);
+        if (request == null) {
+            return null;
+        }
+        String tokenId = "tt:fake:" + generateNonce();
+        tokens.put(tokenId, new FakeToken(tokenId, request));
+        String separator = request.getRedirectUrl().contains("?") ? "&" : "?";
+        return request.getRedirectUrl()
+                + separator + "tokenId=" + encode(tokenId)
+                + "&state=" + encode(request.getCallbackState());
+    }
+
+    @Override
+    public String memberId() {
+        return memberId;
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return respond(() -> alias);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return respond(() -> {
+            String requestId = "rq:fake:" + generateNonce();
+            requests.put(requestId, request.getTokenRequestPayload());
+            return requestId;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return respond(() -> APPROVAL_PATH + requestId);
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return respond(() -> parseCallback(queryParams(callbackUrl), csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return respond(() -> parseCallback(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return respond(() -> find(tokenId).toToken());
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return respond(() -> {
+            find(token.getId()).redeem();
+            String transferId = "t:fake:" + generateNonce();
+            long now = System.currentTimeMillis();
+            transfers.put(transferId, now);
+            return Transfer.newBuilder()
+                    .setId(transferId)
+                    .setStatus(TransactionStatus.PROCESSING)
+                    .setCreatedAtMs(now)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return respond(() -> {
+            Long redeemedAtMs = transfers.getIfPresent(transferId);
+            if (redeemedAtMs == null) {
+                throw new StatusRuntimeException(
+                        Status.NOT_FOUND.withDescription("Transfer not found: " + transferId));
+            }
+            boolean settled = System.currentTimeMillis() - redeemedAtMs >= settleMs;
+            return Transfer.newBuilder()
+                    .setId(transferId)
+                    .setStatus(settled ? TransactionStatus.SUCCESS : TransactionStatus.PROCESSING)
+                    .setCreatedAtMs(redeemedAtMs)
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return respond(() -> {
+            find(tokenId).redeem();
+            return StandingOrderSubmission.newBuilder()
+                    .setId("so:fake:" + generateNonce())
+                    .setTokenId(tokenId)
+                    .build();
+        });
+    }
+
+    private TokenRequestCallback parseCallback(Map<String, String> params, String csrfToken) {
+        String tokenId = params.get("tokenId");
+        String state = params.get("state");
+        if (tokenId == null || state == null) {
+            throw new InvalidRequestException("Callback is missing tokenId or state");
+        }
+        FakeToken token = tokens.getIfPresent(tokenId);
+        if (token == null) {
+            throw new InvalidRequestException("Callback names an unknown token");
+        }
+        if (csrfToken == null || !state.equals(token.request.getCallbackState())) {
+            throw new InvalidRequestException("Callback state does not match the token request");
+        }
+        return TokenRequestCallback.create(tokenId, state);
+    }
+
+    private FakeToken find(String tokenId) {
+        FakeToken token = tokens.getIfPresent(tokenId);
+        if (token == null) {
+            throw new StatusRuntimeException(
+                    Status.NOT_FOUND.withDescription("Token not found: " + tokenId));
+        }
+        return token;
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> result) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable complete = () -> {
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                future.completeExceptionally(new StatusRuntimeException(
+                        Status.UNAVAILABLE.withDescription("Injected failure")));
+                return;
+            }
+            try {
+                future.complete(result.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        };
+        long delayMs = latencyMs + (latencyJitterMs > 0
+                ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1)
+                : 0);
+        if (delayMs > 0) {
+            scheduler.schedule(complete, delayMs, TimeUnit.MILLISECONDS);
+        } else {
+            complete.run();
+        }
+        return future;
+    }
+
+    private static Map<String, String> queryParams(String url) {
+        Map<String, String> params = new HashMap<>();
+        String query = URI.create(url).getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Malformed callback URL", e);
+        }
+    }
+
+    private static final class FakeToken {
+        private final String id;
+        private final TokenRequestPayload request;
+        private final AtomicBoolean redeemed = new AtomicBoolean();
+
+        private FakeToken(String id, TokenRequestPayload request) {
+            this.id = id;
+            this.request = request;
+        }
+
+        private Token toToken() {
+            return Token.newBuilder()
+                    .setId(id)
+                    .setPayload(TokenPayload.newBuilder()
+                            .setRefId(request.getRefId())
+                            .setDescription(request.getDescription())
+                            .build())
+                    .build();
+        }
+
+        private void redeem() {
+            if (!redeemed.compareAndSet(false, true)) {
+                throw new StatusRuntimeException(Status.FAILED_PRECONDITION
+                        .withDescription("Token already redeemed: " + id));
+            }
+        }
+    }
+}
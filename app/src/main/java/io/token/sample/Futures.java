@@ -0,0 +1,104 @@
+package io.token.sample;
+
+import io.grpc.Status;
+import io.reactivex.Observable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Helpers for moving between the SDK's RxJava observables, blocking calls and
+ * {@link CompletableFuture}.
+ */
+final class Futures {
+    private Futures() {
+    }
+
+    /**
+     * Subscribes to a single-valued SDK observable and exposes its result as a future.
+     *
+     * @param observable observable returned by a non-blocking SDK call
+     * @param <T> result type
+     * @return future completed with the single emitted value or the error
+     */
+    static <T> CompletableFuture<T> fromObservable(Observable<T> observable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        observable.singleOrError().subscribe(future::complete, future::completeExceptionally);
+        return future;
+    }
+
+    /**
+     * Runs a blocking call on the calling thread and wraps its outcome in a completed future.
+     *
+     * @param call blocking call
+     * @param <T> result type
+     * @return completed future
+     */
+    static <T> CompletableFuture<T> fromBlocking(Supplier<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(call.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a future, rethrowing the original failure rather than the wrapping
+     * {@link ExecutionException}. Running out of time is reported as an
+     * {@link SdkUnavailableException}, so the caller answers 503 rather than 500.
+     *
+     * @param future future to wait for
+     * @param timeoutMs how long to wait in milliseconds
+     * @param <T> result type
+     * @return result of the future
+     */
+    static <T> T await(CompletableFuture<T> future, long timeoutMs) {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new SdkUnavailableException(
+                    Status.DEADLINE_EXCEEDED
+                            .withDescription("Timed out after " + timeoutMs + "ms")
+                            .withCause(e),
+                    1);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Unwraps {@link CompletionException} and {@link ExecutionException} layers.
+     *
+     * @param throwable failure of a future
+     * @return the underlying cause
+     */
+    static Throwable unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static RuntimeException propagate(Throwable throwable) {
+        Throwable cause = unwrap(throwable);
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+}
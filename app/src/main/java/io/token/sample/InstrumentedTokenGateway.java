@@ -0,0 +1,166 @@
+package io.token.sample;
+
+import static io.grpc.Status.Code.ALREADY_EXISTS;
+import static io.grpc.Status.Code.FAILED_PRECONDITION;
+import static io.grpc.Status.Code.INVALID_ARGUMENT;
+import static io.grpc.Status.Code.NOT_FOUND;
+import static io.grpc.Status.Code.OUT_OF_RANGE;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * {@link TokenGateway} decorator that records the latency and failures of every SDK call.
+ * Calls rejected because of what the client sent, such as an unknown token or an invalid
+ * request, are counted apart from failures of the SDK or the backend.
+ */
+final class InstrumentedTokenGateway implements TokenGateway {
+    private static final Set<Status.Code> CLIENT_ERRORS = EnumSet.of(
+            INVALID_ARGUMENT, NOT_FOUND, ALREADY_EXISTS, FAILED_PRECONDITION, OUT_OF_RANGE);
+
+    private final TokenGateway delegate;
+    private final Call firstAlias;
+    private final Call storeTokenRequest;
+    private final Call generateTokenRequestUrl;
+    private final Call parseTokenRequestCallbackUrl;
+    private final Call parseTokenRequestCallbackParams;
+    private final Call getToken;
+    private final Call redeemToken;
+    private final Call redeemStandingOrderToken;
+    private final Call getTransfer;
+
+    InstrumentedTokenGateway(TokenGateway delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.firstAlias = new Call(metrics, "firstAlias");
+        this.storeTokenRequest = new Call(metrics, "storeTokenRequest");
+        this.generateTokenRequestUrl = new Call(metrics, "generateTokenRequestUrl");
+        this.parseTokenRequestCallbackUrl = new Call(metrics, "parseTokenRequestCallbackUrl");
+        this.parseTokenRequestCallbackParams =
+                new Call(metrics, "parseTokenRequestCallbackParams");
+        this.getToken = new Call(metrics, "getToken");
+        this.redeemToken = new Call(metrics, "redeemToken");
+        this.redeemStandingOrderToken = new Call(metrics, "redeemStandingOrderToken");
+        this.getTransfer = new Call(metrics, "getTransfer");
+    }
+
+    @Override
+    public String memberId() {
+        return delegate.memberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return firstAlias.record(delegate::firstAlias);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return storeTokenRequest.record(() -> delegate.storeTokenRequest(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return generateTokenRequestUrl.record(() -> delegate.generateTokenRequestUrl(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return parseTokenRequestCallbackUrl.record(() ->
+                delegate.parseTokenRequestCallbackUrl(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return parseTokenRequestCallbackParams.record(() ->
+                delegate.parseTokenRequestCallbackParams(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return getToken.record(() -> delegate.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return redeemToken.record(() -> delegate.redeemToken(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return redeemStandingOrderToken.record(() -> delegate.redeemStandingOrderToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return getTransfer.record(() -> delegate.getTransfer(transferId));
+    }
+
+    private static final class Call {
+        private final LatencyHistogram latency;
+        private final LongAdder errors;
+        private final LongAdder clientErrors;
+
+        private Call(Metrics metrics, String name) {
+            this.latency = metrics.histogram(
+                    "merchant_sdk_call_duration_seconds",
+                    "Time spent in Token SDK calls, by call.",
+                    "call",
+                    name);
+            this.errors = metrics.counter(
+                    "merchant_sdk_call_errors_total",
+                    "Token SDK calls that failed, other than client errors, by call.",
+                    "call",
+                    name);
+            this.clientErrors = metrics.counter(
+                    "merchant_sdk_call_client_errors_total",
+                    "Token SDK calls rejected because of the request, e.g. an unknown token, "
+                            + "by call.",
+                    "call",
+                    name);
+        }
+
+        private <T> CompletableFuture<T> record(Supplier<CompletableFuture<T>> invocation) {
+            long start = System.nanoTime();
+            CompletableFuture<T> result;
+            try {
+                result = invocation.get();
+            } catch (RuntimeException e) {
+                latency.record(System.nanoTime() - start);
+                countError(e);
+                throw e;
+            }
+            return result.whenComplete((value, error) -> {
+                latency.record(System.nanoTime() - start);
+                if (error != null) {
+                    countError(Futures.unwrap(error));
+                }
+            });
+        }
+
+        private void countError(Throwable error) {
+            if (error instanceof StatusRuntimeException && CLIENT_ERRORS.contains(
+                    ((StatusRuntimeException) error).getStatus().getCode())) {
+                clientErrors.increment();
+            } else {
+                errors.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.token.sample;
+
+/**
+ * Thrown when a request's parameters or body can't be read or fail validation. Routes answer it
+ * with {@code 400 Bad Request}.
+ */
+final class InvalidRequestException extends RuntimeException {
+    InvalidRequestException(String message) {
+        super(message);
+    }
+
+    InvalidRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
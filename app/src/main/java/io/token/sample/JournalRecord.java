@@ -0,0 +1,224 @@
+package io.token.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One entry of the {@link PaymentJournal}: something that happened to a payment, with every
+ * identifier known at that point and the key of the merchant it was taken for. Fields that don't
+ * apply to the event are null.
+ */
+final class JournalRecord {
+    /**
+     * What happened to the payment.
+     */
+    enum Event {
+        /**
+         * The token request was stored and its URL handed out.
+         */
+        REQUESTED,
+
+        /**
+         * The token was redeemed.
+         */
+        REDEEMED,
+
+        /**
+         * Redeeming the token failed.
+         */
+        FAILED
+    }
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final long sequence;
+    private final long timestampMs;
+    private final Event event;
+    private final String type;
+    private final String refId;
+    private final String tokenRequestId;
+    private final String tokenId;
+    private final String resultId;
+    private final String error;
+    private final String merchantKey;
+
+    JournalRecord(
+            long sequence,
+            long timestampMs,
+            Event event,
+            String type,
+            String refId,
+            String tokenRequestId,
+            String tokenId,
+            String resultId,
+            String error,
+            String merchantKey) {
+        this.sequence = sequence;
+        this.timestampMs = timestampMs;
+        this.event = event;
+        this.type = type;
+        this.refId = refId;
+        this.tokenRequestId = tokenRequestId;
+        this.tokenId = tokenId;
+        this.resultId = resultId;
+        this.error = error != null && error.length() > MAX_ERROR_LENGTH
+                ? error.substring(0, MAX_ERROR_LENGTH)
+                : error;
+        this.merchantKey = merchantKey;
+    }
+
+    static JournalRecord requested(
+            String merchantKey,
+            String type,
+            String refId,
+            String tokenRequestId) {
+        return new JournalRecord(0, 0, Event.REQUESTED, type, refId, tokenRequestId, null, null,
+                null, merchantKey);
+    }
+
+    static JournalRecord redeemed(
+            String merchantKey,
+            String type,
+            String refId,
+            String tokenId,
+            String resultId) {
+        return new JournalRecord(0, 0, Event.REDEEMED, type, refId, null, tokenId, resultId,
+                null, merchantKey);
+    }
+
+    static JournalRecord failed(
+            String merchantKey,
+            String type,
+            String refId,
+            String tokenId,
+            String error) {
+        return new JournalRecord(0, 0, Event.FAILED, type, refId, null, tokenId, null, error,
+                merchantKey);
+    }
+
+    /**
+     * Stamps the record with its position in the journal.
+     *
+     * @param sequence sequence number
+     * @param timestampMs time of the append
+     * @return stamped copy
+     */
+    JournalRecord stamp(long sequence, long timestampMs) {
+        return new JournalRecord(sequence, timestampMs, event, type, refId, tokenRequestId,
+                tokenId, resultId, error, merchantKey);
+    }
+
+    /**
+     * Serializes the record body; framing is up to the journal.
+     *
+     * @return record bytes
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(sequence);
+            out.writeLong(timestampMs);
+            out.writeByte(event.ordinal());
+            for (String field : new String[] {
+                    type, refId, tokenRequestId, tokenId, resultId, error, merchantKey}) {
+                writeString(out, field);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a record body written by {@link #encode()}.
+     *
+     * @param buffer record bytes
+     * @return record
+     */
+    static JournalRecord decode(ByteBuffer buffer) {
+        long sequence = buffer.getLong();
+        long timestampMs = buffer.getLong();
+        Event event = Event.values()[buffer.get()];
+        return new JournalRecord(
+                sequence,
+                timestampMs,
+                event,
+                readString(buffer),
+                readString(buffer),
+                readString(buffer),
+                readString(buffer),
+                readString(buffer),
+                readString(buffer),
+                // records written before merchants were recorded end here
+                buffer.hasRemaining() ? readString(buffer) : null);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getTimestampMs() {
+        return timestampMs;
+    }
+
+    Event getEvent() {
+        return event;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    String getRefId() {
+        return refId;
+    }
+
+    String getTokenRequestId() {
+        return tokenRequestId;
+    }
+
+    String getTokenId() {
+        return tokenId;
+    }
+
+    String getResultId() {
+        return resultId;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    /**
+     * Returns the key of the merchant the payment was taken for.
+     *
+     * @return merchant key, or null for records written before merchants were recorded
+     */
+    String getMerchantKey() {
+        return merchantKey;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
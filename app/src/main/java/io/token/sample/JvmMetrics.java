@@ -0,0 +1,85 @@
+package io.token.sample;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the bytes allocated by the JVM's threads once a second.
+ *
+ * <p>HotSpot tracks allocated bytes per thread. Summing those of the live threads would go
+ * backwards whenever a thread exits, so instead the sampler adds up each thread's increase
+ * since the previous sample; only what a thread allocates in its last second is missed.
+ */
+final class JvmMetrics {
+    private final com.sun.management.ThreadMXBean threads;
+    private final Map<Long, Long> lastAllocated = new HashMap<>();
+    private volatile long allocatedBytes;
+    private volatile double allocationRate;
+    private long lastSampleNanos = System.nanoTime();
+
+    private JvmMetrics(com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Registers the JVM allocation metrics and starts sampling, if the JVM supports per-thread
+     * allocation accounting.
+     *
+     * @param metrics registry
+     */
+    static void register(Metrics metrics) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        JvmMetrics jvm = new JvmMetrics(threads);
+        metrics.gauge(
+                "jvm_allocated_bytes_total",
+                "Bytes allocated by JVM threads since startup.",
+                () -> jvm.allocatedBytes);
+        metrics.gauge(
+                "jvm_allocation_rate_bytes_per_second",
+                "Bytes allocated per second over the last sample.",
+                () -> jvm.allocationRate);
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "allocation-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(jvm::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void sample() {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long delta = 0;
+        Map<Long, Long> seen = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] < 0) {
+                // thread exited between the two calls
+                continue;
+            }
+            Long previous = lastAllocated.get(ids[i]);
+            delta += allocated[i] - (previous == null ? 0 : previous);
+            seen.put(ids[i], allocated[i]);
+        }
+        lastAllocated.clear();
+        lastAllocated.putAll(seen);
+
+        long now = System.nanoTime();
+        allocationRate = delta * 1e9 / Math.max(1, now - lastSampleNanos);
+        lastSampleNanos = now;
+        allocatedBytes += delta;
+    }
+}
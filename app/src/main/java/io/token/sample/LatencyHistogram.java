@@ -0,0 +1,127 @@
+package io.token.sample;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * <p>Latencies are recorded in microseconds. Each power of two is split into four linear
+ * sub-buckets, which bounds the relative error of a bucket to 25%. Recording is a handful of
+ * bit operations and two atomic increments, and never allocates.
+ *
+ * <p>Like Prometheus' {@code le} buckets, buckets are closed above: bucket {@code i} holds the
+ * latencies greater than {@code lowerBound(i)} and at most {@code lowerBound(i + 1)}
+ * microseconds.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(MAX_EXPONENT * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        // shifted down by one so that a latency of exactly a boundary falls in the bucket below
+        counts.incrementAndGet(index(Math.max(0, (value + 999) / 1000 - 1)));
+        count.incrementAndGet();
+        sumNanos.addAndGet(value);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long sumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket holding it.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in microseconds, or 0 if nothing was recorded
+     */
+    long percentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return lowerBound(i + 1);
+            }
+        }
+        return lowerBound(counts.length());
+    }
+
+    /**
+     * Counts the recorded latencies at or below a bucket boundary.
+     *
+     * @param bucket bucket index; its lower bound is the boundary
+     * @return number of latencies in the buckets below
+     */
+    long countUpTo(int bucket) {
+        long below = 0;
+        for (int i = 0; i < bucket && i < counts.length(); i++) {
+            below += counts.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * Returns the index of the bucket holding a value.
+     *
+     * @param micros value in microseconds
+     * @return bucket index
+     */
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return MAX_EXPONENT * SUB_BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value held by a bucket.
+     *
+     * @param bucket bucket index
+     * @return lower bound in microseconds
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Returns the index of the first bucket of a power of two, optionally offset to its
+     * midpoint.
+     *
+     * @param exponent power of two, in microseconds
+     * @param half whether to return the bucket starting at 1.5 times the power of two
+     * @return bucket index
+     */
+    static int boundary(int exponent, boolean half) {
+        return (exponent - 1) * SUB_BUCKETS + (half ? SUB_BUCKETS / 2 : 0);
+    }
+}
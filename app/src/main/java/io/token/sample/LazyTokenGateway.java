@@ -0,0 +1,136 @@
+package io.token.sample;
+
+import io.grpc.Status;
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link TokenGateway} that can be used before the merchant member is logged in. Calls wait
+ * for the member, except for the member ID and alias, which are answered from the
+ * {@link MemberSnapshot} of the previous run until the member is ready.
+ */
+final class LazyTokenGateway implements TokenGateway {
+    private final MemberSnapshot snapshot;
+    private final CompletableFuture<TokenGateway> ready;
+    private final long timeoutMs;
+
+    /**
+     * Creates the gateway.
+     *
+     * @param snapshot member snapshot, or null if there is none
+     * @param ready completed with the gateway of the logged-in member
+     * @param timeoutMs how long {@link #memberId()} waits for the member without a snapshot
+     */
+    LazyTokenGateway(
+            MemberSnapshot snapshot,
+            CompletableFuture<TokenGateway> ready,
+            long timeoutMs) {
+        this.snapshot = snapshot;
+        this.ready = ready;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the future completed once the member is usable.
+     *
+     * @return readiness future
+     */
+    CompletableFuture<TokenGateway> ready() {
+        return ready;
+    }
+
+    @Override
+    public String memberId() {
+        if (isReady() || snapshot == null) {
+            return awaitReady().memberId();
+        }
+        return snapshot.getMemberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        if (isReady() || snapshot == null) {
+            return ready.thenCompose(TokenGateway::firstAlias);
+        }
+        return CompletableFuture.completedFuture(snapshot.getAlias());
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return ready.thenCompose(gateway -> gateway.storeTokenRequest(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return ready.thenCompose(gateway -> gateway.generateTokenRequestUrl(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return ready.thenCompose(gateway ->
+                gateway.parseTokenRequestCallbackUrl(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return ready.thenCompose(gateway ->
+                gateway.parseTokenRequestCallbackParams(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return ready.thenCompose(gateway -> gateway.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return ready.thenCompose(gateway -> gateway.redeemToken(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return ready.thenCompose(gateway -> gateway.redeemStandingOrderToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return ready.thenCompose(gateway -> gateway.getTransfer(transferId));
+    }
+
+    private TokenGateway awaitReady() {
+        try {
+            return ready.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unavailable("Interrupted while waiting for the merchant member", e);
+        } catch (TimeoutException e) {
+            throw unavailable("The merchant member is still being loaded", e);
+        } catch (ExecutionException e) {
+            throw unavailable("The merchant member couldn't be loaded", e.getCause());
+        }
+    }
+
+    private static SdkUnavailableException unavailable(String description, Throwable cause) {
+        return new SdkUnavailableException(
+                Status.UNAVAILABLE.withDescription(description).withCause(cause),
+                1);
+    }
+
+    private boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+}
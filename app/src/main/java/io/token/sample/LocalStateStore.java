@@ -0,0 +1,75 @@
+package io.token.sample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link StateStore} held in this process, in a cache bounded to {@code maxEntries}.
+ */
+final class LocalStateStore implements StateStore {
+    private final Cache<String, Entry> entries;
+
+    /**
+     * Creates the store.
+     *
+     * @param maxEntries maximum number of entries; the least recently used are dropped
+     */
+    LocalStateStore(long maxEntries) {
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    @Override
+    public String get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            entries.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMs) {
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMs));
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMs) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(value, now + ttlMs);
+        return entries.asMap().merge(key, entry, (current, added) ->
+                current.isExpired(now) ? added : current) == entry;
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value, long ttlMs) {
+        long now = System.currentTimeMillis();
+        Entry current = entries.getIfPresent(key);
+        if (current == null || current.isExpired(now) || !current.value.equals(expected)) {
+            return false;
+        }
+        return entries.asMap().replace(key, current, new Entry(value, now + ttlMs));
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.invalidate(key);
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long expiresAtMs;
+
+        private Entry(String value, long expiresAtMs) {
+            this.value = value;
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAtMs;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.token.sample;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+
+/**
+ * Merchant member details that are needed to build every token request but almost never
+ * change: the member ID, its first alias and the base URL the bank redirects back to.
+ */
+final class MemberMetadata {
+    private final String memberId;
+    private final Alias alias;
+    private final String redirectBaseUrl;
+    private final long loadedAtMs;
+
+    MemberMetadata(String memberId, Alias alias, String redirectBaseUrl, long loadedAtMs) {
+        this.memberId = memberId;
+        this.alias = alias;
+        this.redirectBaseUrl = redirectBaseUrl;
+        this.loadedAtMs = loadedAtMs;
+    }
+
+    String getMemberId() {
+        return memberId;
+    }
+
+    Alias getAlias() {
+        return alias;
+    }
+
+    String getRedirectBaseUrl() {
+        return redirectBaseUrl;
+    }
+
+    long getLoadedAtMs() {
+        return loadedAtMs;
+    }
+
+    /**
+     * Builds the callback URL for one of the redirect endpoints.
+     *
+     * @param path endpoint path, e.g. "/redeem"
+     * @return absolute callback URL
+     */
+    String redirectUrl(String path) {
+        return redirectBaseUrl + path;
+    }
+}
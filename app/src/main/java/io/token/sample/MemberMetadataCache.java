@@ -0,0 +1,104 @@
+package io.token.sample;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches {@link MemberMetadata} so that building a token request does not need a
+ * {@code firstAlias} round trip. Entries expire after a TTL; concurrent refreshes are coalesced
+ * into a single SDK call.
+ */
+final class MemberMetadataCache {
+    private final TokenGateway gateway;
+    private final String redirectBaseUrl;
+    private final long ttlMs;
+    private final AtomicReference<CompletableFuture<MemberMetadata>> current =
+            new AtomicReference<>();
+    private final LongAdder remoteCallsAvoided = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param gateway SDK gateway used to look up the alias
+     * @param redirectBaseUrl base URL of the redirect endpoints
+     * @param ttlMs how long metadata is served before it is looked up again
+     */
+    MemberMetadataCache(TokenGateway gateway, String redirectBaseUrl, long ttlMs) {
+        this.gateway = gateway;
+        this.redirectBaseUrl = redirectBaseUrl;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Returns the cached metadata, loading it if absent or expired.
+     *
+     * @return metadata future; already completed on a cache hit
+     */
+    CompletableFuture<MemberMetadata> get() {
+        CompletableFuture<MemberMetadata> cached = current.get();
+        if (cached != null && isFresh(cached)) {
+            remoteCallsAvoided.increment();
+            return cached;
+        }
+        return load(cached);
+    }
+
+    /**
+     * Drops the cached metadata and loads it again.
+     *
+     * @return metadata future
+     */
+    CompletableFuture<MemberMetadata> refresh() {
+        return load(current.get());
+    }
+
+    /**
+     * Returns the number of {@code firstAlias} calls served from the cache.
+     *
+     * @return remote calls avoided
+     */
+    long remoteCallsAvoided() {
+        return remoteCallsAvoided.sum();
+    }
+
+    private CompletableFuture<MemberMetadata> load(CompletableFuture<MemberMetadata> expected) {
+        CompletableFuture<MemberMetadata> loading = new CompletableFuture<>();
+        while (!current.compareAndSet(expected, loading)) {
+            CompletableFuture<MemberMetadata> winner = current.get();
+            if (winner != null) {
+                // another thread is already loading; share its result
+                return winner;
+            }
+            // the other load already failed and cleared the cache; load again
+            expected = null;
+        }
+        gateway.firstAlias()
+                .thenApply(alias -> new MemberMetadata(
+                        gateway.memberId(),
+                        alias,
+                        redirectBaseUrl,
+                        System.currentTimeMillis()))
+                .whenComplete((metadata, error) -> {
+                    if (error != null) {
+                        // don't cache failures; the next caller will try again
+                        current.compareAndSet(loading, null);
+                        loading.completeExceptionally(error);
+                    } else {
+                        loading.complete(metadata);
+                    }
+                });
+        return loading;
+    }
+
+    private boolean isFresh(CompletableFuture<MemberMetadata> cached) {
+        if (!cached.isDone()) {
+            // a load is in flight; waiting for it is still cheaper than a new call
+            return true;
+        }
+        if (cached.isCompletedExceptionally()) {
+            return false;
+        }
+        return System.currentTimeMillis() - cached.join().getLoadedAtMs() < ttlMs;
+    }
+}
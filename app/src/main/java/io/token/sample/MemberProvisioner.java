@@ -0,0 +1,210 @@
+package io.token.sample;
+
+import static io.grpc.Status.Code.NOT_FOUND;
+import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
+import static io.token.util.Util.generateNonce;
+
+import com.google.common.io.Resources;
+import io.grpc.StatusRuntimeException;
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.tpp.Member;
+import io.token.tpp.TokenClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs in the merchant member, or creates it on the first run, in the background.
+ *
+ * <p>The member is found through the {@link MemberSnapshot} left by the previous run, or else
+ * through the keys directory. Calls that don't depend on each other, such as setting the
+ * profile of a new member and registering its redirect URLs, run concurrently. Once the member
+ * is usable a fresh snapshot is written for the next start.
+ */
+final class MemberProvisioner {
+    private static final Logger logger = LoggerFactory.getLogger(MemberProvisioner.class);
+
+    private final TokenClient tokenClient;
+    private final Path keysDir;
+    private final Path snapshotFile;
+    private final List<String> redirectUrls;
+    private final MemberSnapshot snapshot;
+
+    /**
+     * Creates the provisioner and reads the snapshot, if there is one.
+     *
+     * @param tokenClient Token SDK client
+     * @param keysDir directory of the member's private keys
+     * @param snapshotFile member snapshot file
+     * @param redirectUrls redirect URLs to register for the member
+     */
+    MemberProvisioner(
+            TokenClient tokenClient,
+            Path keysDir,
+            Path snapshotFile,
+            List<String> redirectUrls) {
+        this.tokenClient = tokenClient;
+        this.keysDir = keysDir;
+        this.snapshotFile = snapshotFile;
+        this.redirectUrls = redirectUrls;
+        this.snapshot = MemberSnapshot.read(snapshotFile);
+    }
+
+    /**
+     * Returns the snapshot left by the previous run.
+     *
+     * @return snapshot, or null if there is none
+     */
+    MemberSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Starts logging in or creating the member.
+     *
+     * @return future completed with the logged-in member
+     */
+    CompletableFuture<Member> provision() {
+        ExecutorService executor = Executors.newCachedThreadPool(daemon());
+        CompletableFuture<Member> member = CompletableFuture
+                .supplyAsync(this::findMemberId, executor)
+                .thenCompose(memberId -> memberId == null
+                        ? createMember(executor)
+                        : loadMember(memberId, executor));
+        member.whenComplete((value, error) -> {
+            executor.shutdown();
+            if (error != null) {
+                logger.error("Couldn't provision the merchant member", error);
+            }
+        });
+        return member;
+    }
+
+    private String findMemberId() {
+        if (snapshot != null) {
+            return snapshot.getMemberId();
+        }
+        // The UnsecuredFileSystemKeyStore stores keys in a directory
+        // named on the merchantMember's memberId, but with ":" replaced by "_".
+        // Look for such a directory.
+        // If found, try to log in with that memberId
+        // If not found, create a new merchantMember.
+        String[] paths = keysDir.toFile().list();
+        if (paths == null) {
+            return null;
+        }
+        for (String path : paths) {
+            if (path.contains("_")) { // find dir names containing "_"
+                return path.replace("_", ":"); // merchantMember ID
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Using a TokenClient SDK client and the merchantMember ID of a previously-created Member
+     * (whose private keys we have stored locally), log in and refresh the snapshot.
+     */
+    private CompletableFuture<Member> loadMember(String memberId, ExecutorService executor) {
+        Member member;
+        try {
+            member = tokenClient.getMemberBlocking(memberId);
+        } catch (StatusRuntimeException sre) {
+            if (sre.getStatus().getCode() == NOT_FOUND) {
+                // We think we have a merchantMember's ID and keys, but we can't log in.
+                // In the sandbox testing environment, this can happen:
+                // Sometimes, the merchantMember service erases the test members.
+                throw new RuntimeException(
+                        "Couldn't log in saved merchantMember, not found. Remove keys dir and try again.");
+            } else {
+                throw new RuntimeException(sre);
+            }
+        }
+
+        List<CompletableFuture<?>> steps = new ArrayList<>();
+        CompletableFuture<Alias> alias = call(member::firstAliasBlocking, executor);
+        steps.add(alias);
+        if (snapshot == null || !snapshot.getRedirectUrls().containsAll(redirectUrls)) {
+            // the server may have moved since the member was set up; without a snapshot
+            // there's no telling, and registering URLs that are already there is harmless
+            steps.add(call(() -> {
+                member.addRedirectUrlsBlocking(redirectUrls);
+                return null;
+            }, executor));
+        }
+        return CompletableFuture.allOf(steps.toArray(new CompletableFuture[0]))
+                .thenApply(done -> saveSnapshot(member, alias.join()));
+    }
+
+    /**
+     * Using a TokenClient SDK client, create a new Member. This has the side effect of storing the
+     * new Member's private keys in the ./keys directory.
+     */
+    private CompletableFuture<Member> createMember(ExecutorService executor) {
+        // Generate a random username.
+        // If we try to create a merchantMember with an already-used name,
+        // it will fail.
+        // If a domain alias is used instead of an email, please contact Token
+        // with the domain and merchantMember ID for verification.
+        // See https://developer.token.io/sdk/#aliases for more information.
+        String email = "msjava-" + generateNonce().toLowerCase() + "+noverify@example.com";
+        Alias alias = Alias.newBuilder().setType(DOMAIN).setValue(email).build();
+        Member member = tokenClient.createMemberBlocking(alias);
+        // The newly-created merchantMember is automatically logged in.
+
+        // set merchantMember profile: the name and the profile picture,
+        // and the redirect URLs, all at once
+        CompletableFuture<?> name = call(
+                () -> member.setProfileNameBlocking("Demo Merchant"),
+                executor);
+        CompletableFuture<?> picture = call(() -> {
+            try {
+                byte[] pict = Resources.toByteArray(Resources.getResource("southside.png"));
+                member.setProfilePictureBlocking("image/png", pict);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        }, executor);
+        CompletableFuture<?> urls = call(() -> {
+            member.addRedirectUrlsBlocking(redirectUrls);
+            return null;
+        }, executor);
+        return CompletableFuture.allOf(name, picture, urls)
+                .thenApply(done -> saveSnapshot(member, alias));
+    }
+
+    private Member saveSnapshot(Member member, Alias alias) {
+        try {
+            new MemberSnapshot(member.memberId(), alias, redirectUrls).write(snapshotFile);
+        } catch (IOException e) {
+            // the next start will just have to load the member first
+            logger.warn("Couldn't write the member snapshot {}", snapshotFile, e);
+        }
+        return member;
+    }
+
+    private static <T> CompletableFuture<T> call(Supplier<T> call, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(call, executor);
+    }
+
+    private static ThreadFactory daemon() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "member-provisioning-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
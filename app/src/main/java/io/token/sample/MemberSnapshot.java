@@ -0,0 +1,91 @@
+package io.token.sample;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import io.token.proto.common.alias.AliasProtos.Alias;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What the server needs to know about the merchant member to start serving: its ID, alias and
+ * the redirect URLs registered for it. Kept in a local file so that a restart doesn't wait for
+ * the member to be loaded before it opens its port.
+ */
+final class MemberSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(MemberSnapshot.class);
+    private static final Gson gson = new Gson();
+
+    private String memberId;
+    private String aliasType;
+    private String aliasValue;
+    private List<String> redirectUrls;
+
+    MemberSnapshot(String memberId, Alias alias, List<String> redirectUrls) {
+        this.memberId = memberId;
+        this.aliasType = alias.getType().name();
+        this.aliasValue = alias.getValue();
+        this.redirectUrls = new ArrayList<>(redirectUrls);
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file snapshot file
+     * @return snapshot, or null if the file is missing or unreadable
+     */
+    static MemberSnapshot read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            String json = new String(Files.readAllBytes(file), UTF_8);
+            MemberSnapshot snapshot = gson.fromJson(json, MemberSnapshot.class);
+            if (snapshot == null || snapshot.memberId == null || snapshot.aliasValue == null) {
+                logger.warn("Ignoring incomplete member snapshot {}", file);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable member snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot, replacing the file atomically so a crash can't leave half of it.
+     *
+     * @param file snapshot file
+     * @throws IOException if the file can't be written
+     */
+    void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, gson.toJson(this).getBytes(UTF_8));
+        Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    String getMemberId() {
+        return memberId;
+    }
+
+    Alias getAlias() {
+        return Alias.newBuilder()
+                .setType(Alias.Type.valueOf(aliasType))
+                .setValue(aliasValue)
+                .build();
+    }
+
+    List<String> getRedirectUrls() {
+        return redirectUrls == null ? new ArrayList<>() : redirectUrls;
+    }
+}
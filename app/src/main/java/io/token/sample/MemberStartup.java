@@ -0,0 +1,17 @@
+package io.token.sample;
+
+/**
+ * When the merchant member is logged in, selected with the {@code member.startup} setting.
+ */
+enum MemberStartup {
+    /**
+     * The member is logged in, or created, before the server opens its port.
+     */
+    EAGER,
+
+    /**
+     * The server opens its port right away and logs the member in in the background; until
+     * then the member ID and alias come from the {@link MemberSnapshot} of the previous run.
+     */
+    LAZY
+}
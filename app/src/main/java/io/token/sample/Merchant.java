@@ -0,0 +1,45 @@
+package io.token.sample;
+
+/**
+ * Everything the routes need to take payments for one merchant member: its SDK gateway, its
+ * cached metadata (alias and redirect base URL) and its redemption pipeline.
+ */
+final class Merchant {
+    private final String key;
+    private final TokenGateway gateway;
+    private final MemberMetadataCache metadata;
+    private final RedeemPipeline redeemPipeline;
+
+    Merchant(
+            String key,
+            TokenGateway gateway,
+            MemberMetadataCache metadata,
+            RedeemPipeline redeemPipeline) {
+        this.key = key;
+        this.gateway = gateway;
+        this.metadata = metadata;
+        this.redeemPipeline = redeemPipeline;
+    }
+
+    /**
+     * Returns the key the merchant is routed by, which its payment records are tagged with.
+     *
+     * @return keystore directory name with path routing, configured host with host routing, an
+     *     empty string for the single merchant
+     */
+    String getKey() {
+        return key;
+    }
+
+    TokenGateway getGateway() {
+        return gateway;
+    }
+
+    MemberMetadataCache getMetadata() {
+        return metadata;
+    }
+
+    RedeemPipeline getRedeemPipeline() {
+        return redeemPipeline;
+    }
+}
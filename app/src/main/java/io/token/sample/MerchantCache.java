@@ -0,0 +1,59 @@
+package io.token.sample;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Holds the {@link Merchant}s of a multi-merchant server, so that memory grows with the
+ * merchants that are taking payments rather than with every merchant that is configured.
+ *
+ * <p>A merchant is loaded the first time a request names it; concurrent requests for a
+ * merchant that is being loaded wait for that load instead of starting their own. The least
+ * recently used merchants are evicted beyond {@code maximumSize}, and any merchant idle for
+ * {@code idleTtlMs}. Failed loads are not cached.
+ */
+final class MerchantCache {
+    private final LoadingCache<String, Merchant> merchants;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maximumSize maximum number of loaded merchants
+     * @param idleTtlMs how long an unused merchant is kept
+     * @param loader loads a merchant by its routing key, throwing
+     *     {@link UnknownMerchantException} if there is no such merchant
+     */
+    MerchantCache(long maximumSize, long idleTtlMs, Function<String, Merchant> loader) {
+        this.merchants = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleTtlMs, TimeUnit.MILLISECONDS)
+                .build(CacheLoader.from(loader::apply));
+    }
+
+    /**
+     * Returns a merchant, loading it if needed.
+     *
+     * @param key routing key of the merchant
+     * @return merchant
+     */
+    Merchant get(String key) {
+        try {
+            return merchants.getUnchecked(key);
+        } catch (UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    long size() {
+        return merchants.size();
+    }
+}
@@ -0,0 +1,22 @@
+package io.token.sample;
+
+/**
+ * How a request is matched to its merchant, selected with the {@code merchant.routing} setting.
+ */
+enum MerchantRouting {
+    /**
+     * Every request is for the one merchant member this server logs in at startup.
+     */
+    SINGLE,
+
+    /**
+     * The merchant is named in the path, {@code /merchants/{merchant}/...}, by the name of its
+     * directory in the keystore: the member ID with ":" replaced by "_".
+     */
+    PATH,
+
+    /**
+     * The merchant is looked up by the request's {@code Host} header in {@code merchant.hosts}.
+     */
+    HOST
+}
@@ -0,0 +1,230 @@
+package io.token.sample;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import spark.Route;
+
+/**
+ * Registry of the sample's metrics, exported in the Prometheus text format.
+ *
+ * <p>Metrics are registered once, when a route or gateway call is set up, and the caller keeps
+ * the returned {@link LatencyHistogram} or {@link LongAdder}; recording never goes through the
+ * registry.
+ */
+final class Metrics {
+    // exported histogram boundaries: two per power of two, from 64us to 67s
+    private static final int MIN_EXPONENT = 6;
+    private static final int MAX_EXPONENT = 26;
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Registers a latency histogram.
+     *
+     * @param name metric name, e.g. "merchant_sdk_call_duration_seconds"
+     * @param help description
+     * @param labelName label distinguishing the series
+     * @param labelValue label value
+     * @return histogram to record into
+     */
+    LatencyHistogram histogram(String name, String help, String labelName, String labelValue) {
+        return register(name, help, "histogram", labelName, labelValue, new LatencyHistogram());
+    }
+
+    /**
+     * Registers a counter.
+     *
+     * @param name metric name, e.g. "merchant_sdk_call_errors_total"
+     * @param help description
+     * @param labelName label distinguishing the series
+     * @param labelValue label value
+     * @return counter to increment
+     */
+    LongAdder counter(String name, String help, String labelName, String labelValue) {
+        return register(name, help, "counter", labelName, labelValue, new LongAdder());
+    }
+
+    /**
+     * Registers a gauge whose value is read at scrape time.
+     *
+     * @param name metric name
+     * @param help description
+     * @param value reads the current value
+     */
+    void gauge(String name, String help, DoubleSupplier value) {
+        register(name, help, "gauge", null, null, value);
+    }
+
+    /**
+     * Registers one series of a labelled gauge whose value is read at scrape time.
+     *
+     * @param name metric name
+     * @param help description
+     * @param labelName label distinguishing the series
+     * @param labelValue label value
+     * @param value reads the current value
+     */
+    void gauge(
+            String name,
+            String help,
+            String labelName,
+            String labelValue,
+            DoubleSupplier value) {
+        register(name, help, "gauge", labelName, labelValue, value);
+    }
+
+    /**
+     * Wraps a Spark route so that its latency and failures are recorded. Requests rejected as
+     * invalid or for an unknown merchant don't count as failures.
+     *
+     * @param method HTTP method
+     * @param path route path
+     * @param route route to wrap
+     * @return instrumented route
+     */
+    Route timed(String method, String path, Route route) {
+        String label = method + " " + path;
+        LatencyHistogram latency = histogram(
+                "merchant_http_request_duration_seconds",
+                "Time spent handling HTTP requests, by route.",
+                "route",
+                label);
+        LongAdder errors = counter(
+                "merchant_http_request_errors_total",
+                "HTTP requests that failed or answered with a 5xx status, by route.",
+                "route",
+                label);
+        return (req, res) -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object body = route.handle(req, res);
+                failed = res.raw().getStatus() >= 500;
+                return body;
+            } catch (InvalidRequestException | UnknownMerchantException e) {
+                // answered with 400 and 404; the client's mistake, not a failure of the route
+                failed = false;
+                throw e;
+            } finally {
+                latency.record(System.nanoTime() - start);
+                if (failed) {
+                    errors.increment();
+                }
+            }
+        };
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return metrics text
+     */
+    String scrape() {
+        List<Family> snapshot;
+        synchronized (families) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        StringBuilder out = new StringBuilder(16 * 1024);
+        for (Family family : snapshot) {
+            family.writeTo(out);
+        }
+        return out.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T register(
+            String name,
+            String help,
+            String type,
+            String labelName,
+            String labelValue,
+            T metric) {
+        String labels = labelName == null ? "" : labelName + "=\"" + escape(labelValue) + "\"";
+        synchronized (families) {
+            Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+            synchronized (family) {
+                return (T) family.series.computeIfAbsent(labels, l -> metric);
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series = new LinkedHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private void writeTo(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            List<Map.Entry<String, Object>> entries;
+            synchronized (this) {
+                entries = new ArrayList<>(series.entrySet());
+            }
+            for (Map.Entry<String, Object> entry : entries) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    writeHistogram(out, labels, (LatencyHistogram) metric);
+                } else if (metric instanceof LongAdder) {
+                    writeSample(out, name, labels, ((LongAdder) metric).sum());
+                } else {
+                    writeSample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            }
+        }
+
+        private void writeHistogram(StringBuilder out, String labels, LatencyHistogram histogram) {
+            // read the count first so that no bucket exceeds it
+            long count = histogram.count();
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+                for (int half = 0; half < 2; half++) {
+                    int bucket = LatencyHistogram.boundary(exponent, half == 1);
+                    double le = LatencyHistogram.lowerBound(bucket) / 1e6;
+                    writeSample(
+                            out,
+                            name + "_bucket",
+                            prefix + "le=\"" + le + "\"",
+                            Math.min(count, histogram.countUpTo(bucket)));
+                }
+            }
+            writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+            writeSample(out, name + "_sum", labels, histogram.sumNanos() / 1e9);
+            writeSample(out, name + "_count", labels, count);
+        }
+
+        private static void writeSample(
+                StringBuilder out,
+                String name,
+                String labels,
+                double value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ');
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.token.sample;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@code GET /metrics} on its own port, so that scrapes neither compete with payments
+ * for Jetty workers nor are exposed on the public port.
+ */
+final class MetricsServer {
+    private MetricsServer() {
+    }
+
+    /**
+     * Starts the metrics server.
+     *
+     * @param port port to listen on
+     * @param metrics registry to export
+     */
+    static void start(int port, Metrics metrics) {
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.scrape().getBytes(UTF_8);
+            exchange.getResponseHeaders()
+                    .set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+}
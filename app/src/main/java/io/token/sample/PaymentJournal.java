@@ -0,0 +1,366 @@
+package io.token.sample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only local record of every payment this server handles, so that "what happened to
+ * this payment" can be answered without a call to Token.
+ *
+ * <p>Records are appended to memory-mapped segment files of {@code segmentBytes} each, named
+ * after the sequence number of their first record. Each record is framed by its length and a
+ * CRC32 of its body. Appends are queued and written by a single thread, which takes up to
+ * {@code batchSize} queued records at a time and forces them to disk together, so one fsync
+ * covers a whole batch and request threads never wait for the disk.
+ *
+ * <p>The latest record of each reference ID and token ID is kept in memory, for at most
+ * {@code indexSize} IDs of each kind. On startup the segments are scanned to rebuild that
+ * index; the scan of the last segment stops at the first record that is incomplete or fails its
+ * checksum, which is where a crash interrupted a write, and appending resumes there. A segment
+ * is read at the size it was created with, even if {@code segmentBytes} has changed since.
+ *
+ * <p>Whenever a new segment is started, the oldest segments are deleted while there are more
+ * than {@code maxSegments}, or while their last record is older than {@code retentionMs}, and
+ * their records are dropped from the index. This bounds both the disk used and the work of the
+ * startup scan.
+ */
+final class PaymentJournal {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentJournal.class);
+    private static final String SUFFIX = ".journal";
+    // length and CRC32
+    private static final int HEADER_BYTES = 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long retentionMs;
+    private final int batchSize;
+    private final BlockingQueue<JournalRecord> queue;
+    private final Cache<String, JournalRecord> byRefId;
+    private final Cache<String, JournalRecord> byTokenId;
+    private final LongAdder dropped = new LongAdder();
+    private final LatencyHistogram forceLatency;
+    // oldest first; only touched by the constructor and then by the writer thread
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private MappedByteBuffer segment;
+    private long nextSequence;
+
+    /**
+     * Opens the journal, recovering its index, and starts its writer.
+     *
+     * @param dir journal directory
+     * @param segmentBytes size of each new segment file
+     * @param maxSegments maximum number of segment files kept
+     * @param retentionMs how long a segment is kept after its last record was written
+     * @param indexSize maximum number of reference IDs, and of token IDs, in the index
+     * @param batchSize maximum number of records written per fsync
+     * @param queueCapacity maximum number of records waiting to be written
+     * @param metrics metrics registry
+     * @throws IOException if the journal can't be read or created
+     */
+    PaymentJournal(
+            Path dir,
+            int segmentBytes,
+            int maxSegments,
+            long retentionMs,
+            long indexSize,
+            int batchSize,
+            int queueCapacity,
+            Metrics metrics) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.retentionMs = retentionMs;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.byRefId = CacheBuilder.newBuilder().maximumSize(indexSize).build();
+        this.byTokenId = CacheBuilder.newBuilder().maximumSize(indexSize).build();
+        this.forceLatency = metrics.histogram(
+                "merchant_journal_fsync_duration_seconds",
+                "Time spent forcing a batch of journal records to disk.",
+                "journal",
+                "payments");
+        recover();
+
+        Thread writer = new Thread(this::write, "payment-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record to be written. Never blocks; if the writer has fallen too far behind the
+     * record is dropped and counted.
+     *
+     * @param record record to append
+     */
+    void append(JournalRecord record) {
+        if (!queue.offer(record.stamp(0, System.currentTimeMillis()))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Looks up the latest durable record of a payment.
+     *
+     * @param id reference ID or token ID
+     * @return record, or null if the journal has none or it has left the index
+     */
+    JournalRecord latest(String id) {
+        JournalRecord record = byRefId.getIfPresent(id);
+        return record != null ? record : byTokenId.getIfPresent(id);
+    }
+
+    /**
+     * Number of payments in the index.
+     *
+     * @return indexed reference IDs
+     */
+    long size() {
+        return byRefId.size();
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void write() {
+        List<JournalRecord> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<JournalRecord> batch) {
+        List<JournalRecord> written = new ArrayList<>(batch.size());
+        int next = 0;
+        try {
+            for (; next < batch.size(); next++) {
+                JournalRecord record = batch.get(next);
+                JournalRecord stamped = record.stamp(nextSequence++, record.getTimestampMs());
+                byte[] body = stamped.encode();
+                if (HEADER_BYTES + body.length > segmentBytes - HEADER_BYTES) {
+                    logger.error("Dropping journal record of {} bytes, too large for a segment",
+                            body.length);
+                    dropped.increment();
+                    continue;
+                }
+                writeRecord(stamped, body);
+                written.add(stamped);
+            }
+            long start = System.nanoTime();
+            segment.force();
+            forceLatency.record(System.nanoTime() - start);
+        } catch (RuntimeException | IOException e) {
+            logger.error("Couldn't write journal records; dropping the {} not yet written",
+                    batch.size() - next, e);
+            dropped.add(batch.size() - next);
+        } finally {
+            // records that reached the segment are recovered on the next start whether or not
+            // this batch was forced, so the index has to know about them too
+            written.forEach(this::index);
+        }
+    }
+
+    private void writeRecord(JournalRecord record, byte[] body) throws IOException {
+        // keep room for a zero length that marks the end of the segment
+        if (segment.remaining() < HEADER_BYTES + body.length + HEADER_BYTES) {
+            segment.force();
+            Path file = segmentFile(record.getSequence());
+            segment = map(file);
+            segments.addLast(new Segment(file, record.getSequence()));
+            retire(record.getTimestampMs());
+        }
+        segment.putInt(body.length);
+        segment.putInt(crc(body));
+        segment.put(body);
+        segments.getLast().lastTimestampMs = record.getTimestampMs();
+    }
+
+    /**
+     * Deletes the oldest segments beyond {@code maxSegments} or {@code retentionMs}, never the
+     * one being written, and drops their records from the index.
+     */
+    private void retire(long nowMs) {
+        boolean retired = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            if (segments.size() <= maxSegments && nowMs - oldest.lastTimestampMs < retentionMs) {
+                break;
+            }
+            segments.removeFirst();
+            retired = true;
+            try {
+                Files.deleteIfExists(oldest.file);
+            } catch (IOException e) {
+                logger.warn("Couldn't delete journal segment {}", oldest.file, e);
+            }
+        }
+        if (retired) {
+            long firstSequence = segments.getFirst().firstSequence;
+            byRefId.asMap().values().removeIf(record -> record.getSequence() < firstSequence);
+            byTokenId.asMap().values().removeIf(record -> record.getSequence() < firstSequence);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing
+                    .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            nextSequence = 0;
+            segment = map(segmentFile(0));
+            segments.addLast(new Segment(segmentFile(0), 0));
+            return;
+        }
+        int records = 0;
+        for (Path file : files) {
+            MappedByteBuffer buffer = map(file);
+            Segment recovered = new Segment(file, firstSequence(file));
+            records += scan(buffer, recovered);
+            segments.addLast(recovered);
+            segment = buffer;
+        }
+        logger.info("Recovered {} journal records from {} segments", records, files.size());
+        retire(System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the valid records of a segment into the index and leaves the buffer positioned
+     * after the last of them, clearing whatever a crash left behind.
+     */
+    private int scan(MappedByteBuffer buffer, Segment recovered) {
+        int records = 0;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length == 0) {
+                // end of the segment
+                buffer.position(start);
+                break;
+            }
+            JournalRecord record = length > 0 && length <= buffer.remaining()
+                    ? read(buffer, length, checksum)
+                    : null;
+            if (record == null) {
+                logger.warn("Discarding torn journal record at offset {}", start);
+                // records after it were never acknowledged; don't let them resurface
+                buffer.position(start);
+                clear(buffer);
+                break;
+            }
+            index(record);
+            nextSequence = Math.max(nextSequence, record.getSequence() + 1);
+            recovered.lastTimestampMs = record.getTimestampMs();
+            records++;
+        }
+        return records;
+    }
+
+    private static JournalRecord read(ByteBuffer buffer, int length, int checksum) {
+        byte[] body = new byte[length];
+        buffer.get(body);
+        if (crc(body) != checksum) {
+            return null;
+        }
+        try {
+            return JournalRecord.decode(ByteBuffer.wrap(body));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void index(JournalRecord record) {
+        if (record.getRefId() != null) {
+            byRefId.put(record.getRefId(), record);
+        }
+        if (record.getTokenId() != null) {
+            byTokenId.put(record.getTokenId(), record);
+        }
+    }
+
+    private Path segmentFile(long firstSequence) {
+        return dir.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+    }
+
+    private static long firstSequence(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // an existing segment keeps the size it was created with
+            long size = channel.size() > 0 ? channel.size() : segmentBytes;
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void clear(MappedByteBuffer buffer) {
+        int position = buffer.position();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        buffer.force();
+        buffer.position(position);
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final long firstSequence;
+        private long lastTimestampMs;
+
+        private Segment(Path file, long firstSequence) {
+            this.file = file;
+            this.firstSequence = firstSequence;
+        }
+    }
+}
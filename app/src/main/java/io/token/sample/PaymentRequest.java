@@ -0,0 +1,182 @@
+package io.token.sample;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.Currency;
+
+import spark.Request;
+
+/**
+ * Amount, currency and description of a payment, as sent by the page or a batch item.
+ *
+ * <p>Amounts are kept as the exact decimal the client sent and must be positive, with no more
+ * fraction digits than the currency has. Parameters are validated when read, so a request with
+ * a missing or malformed field is rejected with {@link InvalidRequestException} before any
+ * token request is built.
+ */
+final class PaymentRequest {
+    // the most significant digits a double keeps, for the SDK's double-based builders; also the
+    // most digits an amount may have before the point
+    private static final int MAX_PRECISION = 15;
+    private static final int MAX_DESCRIPTION_LENGTH = 255;
+
+    private final BigDecimal amount;
+    private final String currency;
+    private final String description;
+    private final String type;
+
+    private PaymentRequest(BigDecimal amount, String currency, String description, String type) {
+        this.amount = amount;
+        this.currency = currency;
+        this.description = description;
+        this.type = type;
+    }
+
+    /**
+     * Reads a payment from the query parameters of a redirect route.
+     *
+     * @param req request
+     * @return validated payment
+     */
+    static PaymentRequest fromQuery(Request req) {
+        return of(
+                req.queryParams("amount"),
+                req.queryParams("currency"),
+                req.queryParams("description"),
+                req.queryParams("type"));
+    }
+
+    /**
+     * Reads a payment from a JSON object body.
+     *
+     * @param body request body
+     * @return validated payment
+     */
+    static PaymentRequest fromJson(Reader body) {
+        try {
+            JsonReader reader = new JsonReader(body);
+            PaymentRequest payment = read(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new InvalidRequestException("Unexpected content after the payment");
+            }
+            return payment;
+        } catch (IOException | IllegalStateException e) {
+            throw new InvalidRequestException("Malformed payment JSON", e);
+        }
+    }
+
+    /**
+     * Reads the next payment object from a stream. The whole object is consumed before it is
+     * validated, so the reader stays positioned after it even if the payment is rejected.
+     *
+     * @param reader JSON reader positioned at an object
+     * @return validated payment
+     * @throws IOException if the stream can't be read or isn't well-formed JSON
+     * @throws IllegalStateException if the next value isn't a flat object
+     */
+    static PaymentRequest read(JsonReader reader) throws IOException {
+        String amount = null;
+        String currency = null;
+        String description = null;
+        String type = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "amount":
+                    amount = reader.nextString();
+                    break;
+                case "currency":
+                    currency = reader.nextString();
+                    break;
+                case "description":
+                    description = reader.nextString();
+                    break;
+                case "type":
+                    type = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return of(amount, currency, description, type);
+    }
+
+    private static PaymentRequest of(
+            String amount,
+            String currency,
+            String description,
+            String type) {
+        if (currency == null) {
+            throw new InvalidRequestException("Missing currency");
+        }
+        Currency unit;
+        try {
+            unit = Currency.getInstance(currency);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Unknown currency " + currency);
+        }
+        if (amount == null) {
+            throw new InvalidRequestException("Missing amount");
+        }
+        BigDecimal value;
+        try {
+            value = new BigDecimal(amount);
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("Malformed amount " + amount);
+        }
+        if (value.signum() <= 0) {
+            throw new InvalidRequestException("Amount must be positive");
+        }
+        value = value.stripTrailingZeros();
+        // digits before the point; 1E+20 has a precision of 1 but 21 of them
+        long integerDigits = (long) value.precision() - value.scale();
+        if (value.scale() > Math.max(0, unit.getDefaultFractionDigits())
+                || value.precision() > MAX_PRECISION
+                || integerDigits > MAX_PRECISION) {
+            throw new InvalidRequestException("Invalid " + currency + " amount " + amount);
+        }
+        if (description != null && description.length() > MAX_DESCRIPTION_LENGTH) {
+            throw new InvalidRequestException("Description is too long");
+        }
+        return new PaymentRequest(value, currency, description, type);
+    }
+
+    /**
+     * Returns the amount for the SDK's builders, which take a double. Validated amounts have at
+     * most {@value #MAX_PRECISION} significant digits, so the double still reads back as the
+     * same decimal.
+     *
+     * @return amount
+     */
+    double getAmountAsDouble() {
+        return amount.doubleValue();
+    }
+
+    String getCurrency() {
+        return currency;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the kind of payment a batch item asks for.
+     *
+     * @param defaultType type to use if none was given
+     * @return "DEFAULT", "ONE_STEP", "STANDING_ORDER" or whatever else the client sent
+     */
+    String getType(String defaultType) {
+        return type == null ? defaultType : type;
+    }
+}
@@ -0,0 +1,136 @@
+package io.token.sample;
+
+/**
+ * State of a queued redemption, as reported by {@code /payment-status/{refId}}.
+ */
+final class PaymentStatus {
+    enum State {
+        QUEUED,
+        REDEEMING,
+        RETRYING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private final String merchantKey;
+    private final String refId;
+    private final String tokenId;
+    private final String type;
+    private final State state;
+    private final String resultId;
+    private final String error;
+    private final int attempts;
+    private final long updatedAtMs;
+
+    PaymentStatus(
+            String merchantKey,
+            String refId,
+            String tokenId,
+            String type,
+            State state,
+            String resultId,
+            String error,
+            int attempts,
+            long updatedAtMs) {
+        this.merchantKey = merchantKey;
+        this.refId = refId;
+        this.tokenId = tokenId;
+        this.type = type;
+        this.state = state;
+        this.resultId = resultId;
+        this.error = error;
+        this.attempts = attempts;
+        this.updatedAtMs = updatedAtMs;
+    }
+
+    /**
+     * Creates the status of a newly queued redemption.
+     *
+     * @param merchantKey key of the merchant the payment is for
+     * @param refId reference ID of the payment
+     * @param tokenId token to redeem
+     * @param type kind of token, e.g. "transfer"
+     * @return queued status
+     */
+    static PaymentStatus queued(String merchantKey, String refId, String tokenId, String type) {
+        return new PaymentStatus(
+                merchantKey,
+                refId,
+                tokenId,
+                type,
+                State.QUEUED,
+                null,
+                null,
+                0,
+                System.currentTimeMillis());
+    }
+
+    PaymentStatus redeeming() {
+        return withState(State.REDEEMING, resultId, error, attempts + 1);
+    }
+
+    PaymentStatus retrying(String error) {
+        return withState(State.RETRYING, null, error, attempts);
+    }
+
+    PaymentStatus succeeded(String resultId) {
+        return withState(State.SUCCEEDED, resultId, null, attempts);
+    }
+
+    PaymentStatus failed(String error) {
+        return withState(State.FAILED, null, error, attempts);
+    }
+
+    String getMerchantKey() {
+        return merchantKey;
+    }
+
+    String getRefId() {
+        return refId;
+    }
+
+    String getTokenId() {
+        return tokenId;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    String getResultId() {
+        return resultId;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getUpdatedAtMs() {
+        return updatedAtMs;
+    }
+
+    boolean isTerminal() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    private PaymentStatus withState(State state, String resultId, String error, int attempts) {
+        return new PaymentStatus(
+                merchantKey,
+                refId,
+                tokenId,
+                type,
+                state,
+                resultId,
+                error,
+                attempts,
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,99 @@
+package io.token.sample;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * {@link TokenGateway} that spreads the calls of one member over the channels of a
+ * {@link TokenClientPool}, holding a gateway of the member per channel.
+ */
+final class PooledTokenGateway implements TokenGateway {
+    private final TokenClientPool pool;
+    private final List<TokenGateway> channels;
+
+    /**
+     * Creates the gateway.
+     *
+     * @param pool pool that picks the channel of each call
+     * @param channels gateway of the member on each channel of the pool, in pool order
+     */
+    PooledTokenGateway(TokenClientPool pool, List<TokenGateway> channels) {
+        this.pool = pool;
+        this.channels = channels;
+    }
+
+    @Override
+    public String memberId() {
+        return channels.get(0).memberId();
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return call(TokenGateway::firstAlias);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return call(gateway -> gateway.storeTokenRequest(request));
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return call(gateway -> gateway.generateTokenRequestUrl(requestId));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return call(gateway -> gateway.parseTokenRequestCallbackUrl(callbackUrl, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return call(gateway -> gateway.parseTokenRequestCallbackParams(callbackParams, csrfToken));
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return call(gateway -> gateway.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return call(gateway -> gateway.redeemToken(token));
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return call(gateway -> gateway.redeemStandingOrderToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return call(gateway -> gateway.getTransfer(transferId));
+    }
+
+    private <T> CompletableFuture<T> call(Function<TokenGateway, CompletableFuture<T>> call) {
+        int channel = pool.acquire();
+        CompletableFuture<T> result;
+        try {
+            result = call.apply(channels.get(channel));
+        } catch (RuntimeException e) {
+            pool.release(channel);
+            throw e;
+        }
+        return result.whenComplete((value, error) -> pool.release(channel));
+    }
+}
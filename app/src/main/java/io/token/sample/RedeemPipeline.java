@@ -0,0 +1,154 @@
+package io.token.sample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.token.TokenProtos.TokenPayload;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redeems transfer tokens with as few SDK calls as possible.
+ *
+ * <p>The SDK only reads the token ID and the payload description when it redeems a token. If
+ * the callback was verified against a CSRF token that this server issued, the description is
+ * already known from the token request, so the token is redeemed by ID without fetching it
+ * first. Issued token requests are kept in the {@link StateStore}, so the callback may land on
+ * any node. Otherwise the token is fetched, consulting a bounded cache of recently seen tokens
+ * before going to the network.
+ *
+ * <p>Redemptions are made idempotent per token ID with {@link RedemptionTable}s, so a refreshed
+ * callback page or a popup firing twice does not redeem the same token again.
+ */
+final class RedeemPipeline {
+    private final TokenGateway gateway;
+    private final boolean direct;
+    private final StateStore state;
+    private final long pendingRequestTtlMs;
+    private final Cache<String, Token> tokens;
+    private final RedemptionTable<Transfer> transfers;
+    private final RedemptionTable<StandingOrderSubmission> standingOrders;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param gateway SDK gateway
+     * @param direct whether to redeem by token ID when the token request is known
+     * @param state store of the issued token requests, shared by all nodes
+     * @param pendingRequestTtlMs how long issued token requests are remembered
+     * @param tokenCacheSize maximum number of cached tokens
+     * @param tokenCacheTtlMs how long a fetched token is cached
+     * @param transfers redeemed transfers by token ID
+     * @param standingOrders redeemed standing orders by token ID
+     */
+    RedeemPipeline(
+            TokenGateway gateway,
+            boolean direct,
+            StateStore state,
+            long pendingRequestTtlMs,
+            long tokenCacheSize,
+            long tokenCacheTtlMs,
+            RedemptionTable<Transfer> transfers,
+            RedemptionTable<StandingOrderSubmission> standingOrders) {
+        this.gateway = gateway;
+        this.direct = direct;
+        this.transfers = transfers;
+        this.standingOrders = standingOrders;
+        this.state = state;
+        this.pendingRequestTtlMs = pendingRequestTtlMs;
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(tokenCacheSize)
+                .expireAfterWrite(tokenCacheTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Remembers a token request that was just issued, so its callback can be matched to its
+     * reference ID and, for transfers, redeemed without fetching the token.
+     *
+     * @param csrfToken CSRF token set in the browser cookie for this request
+     * @param refId reference ID of the token request
+     * @param description description of the token request
+     */
+    void expect(String csrfToken, String refId, String description) {
+        JsonObject request = new JsonObject();
+        request.addProperty("refId", refId);
+        request.addProperty("description", description == null ? "" : description);
+        state.put("request:" + csrfToken, request.toString(), pendingRequestTtlMs);
+    }
+
+    /**
+     * Looks up the reference ID of a token request issued by this server.
+     *
+     * @param csrfToken CSRF token from the browser cookie
+     * @return reference ID, or null if the request is not known
+     */
+    String refId(String csrfToken) {
+        TokenPayload payload = pendingRequest(csrfToken);
+        return payload == null ? null : payload.getRefId();
+    }
+
+    /**
+     * Redeems a transfer token whose callback has already been verified.
+     *
+     * @param tokenId token ID from the callback
+     * @param csrfToken CSRF token from the browser cookie
+     * @return redeemed transfer
+     */
+    CompletableFuture<Transfer> redeem(String tokenId, String csrfToken) {
+        return transfers.redeemOnce(
+                tokenId,
+                () -> token(tokenId, csrfToken)
+                        // redeem the token at the server to move the funds
+                        .thenCompose(gateway::redeemToken));
+    }
+
+    /**
+     * Redeems a standing order token whose callback has already been verified.
+     *
+     * @param tokenId token ID from the callback
+     * @return standing order submission
+     */
+    CompletableFuture<StandingOrderSubmission> redeemStandingOrder(String tokenId) {
+        return standingOrders.redeemOnce(
+                tokenId,
+                // redeem the token at the server to move the funds
+                () -> gateway.redeemStandingOrderToken(tokenId));
+    }
+
+    private TokenPayload pendingRequest(String csrfToken) {
+        String saved = csrfToken == null ? null : state.get("request:" + csrfToken);
+        if (saved == null) {
+            return null;
+        }
+        JsonObject request = JsonParser.parseString(saved).getAsJsonObject();
+        return TokenPayload.newBuilder()
+                .setRefId(request.get("refId").getAsString())
+                .setDescription(request.get("description").getAsString())
+                .build();
+    }
+
+    private CompletableFuture<Token> token(String tokenId, String csrfToken) {
+        TokenPayload payload = direct ? pendingRequest(csrfToken) : null;
+        if (payload != null) {
+            return CompletableFuture.completedFuture(Token.newBuilder()
+                    .setId(tokenId)
+                    .setPayload(payload)
+                    .build());
+        }
+        Token cached = tokens.getIfPresent(tokenId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // get the token and check its validity
+        return gateway.getToken(tokenId).thenApply(token -> {
+            tokens.put(token.getId(), token);
+            return token;
+        });
+    }
+}
@@ -0,0 +1,312 @@
+package io.token.sample;
+
+import static io.grpc.Status.Code.ABORTED;
+import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
+import static io.grpc.Status.Code.RESOURCE_EXHAUSTED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Redeems tokens in the background so that the callback response does not wait for the bank.
+ *
+ * <p>Redemptions are held in a bounded queue and taken by a fixed set of workers in batches;
+ * the redemptions of a batch run concurrently. Failures that are likely to be transient are
+ * retried with exponential backoff. The state of each redemption is kept, keyed by the
+ * payment's reference ID, for {@code /payment-status/{refId}} to report. The node that queued a
+ * redemption owns its state and copies every change to the {@link StateStore}, where the other
+ * nodes read it and where a second submission of the same reference ID is turned away, unless
+ * the first one failed.
+ */
+final class RedemptionQueue {
+    private static final Logger logger = LoggerFactory.getLogger(RedemptionQueue.class);
+    private static final Set<Status.Code> RETRYABLE =
+            EnumSet.of(UNAVAILABLE, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED, ABORTED);
+    private static final Gson gson = new Gson();
+
+    private final BlockingQueue<Job> queue;
+    private final Cache<String, PaymentStatus> statuses;
+    private final ScheduledExecutorService retries;
+    private final AtomicInteger retryDepth = new AtomicInteger();
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long redeemTimeoutMs;
+    private final StateStore state;
+    private final long statusTtlMs;
+
+    /**
+     * Creates the queue and starts its workers.
+     *
+     * @param workers number of worker threads
+     * @param capacity maximum number of queued redemptions
+     * @param batchSize maximum number of redemptions a worker starts at once
+     * @param maxAttempts attempts before a redemption is marked as failed
+     * @param initialBackoffMs delay before the first retry, doubled on each further retry
+     * @param maxBackoffMs upper bound of the retry delay
+     * @param redeemTimeoutMs how long a worker waits for the redemptions of a batch
+     * @param statusTtlMs how long the status of a redemption is kept
+     * @param maxStatuses maximum number of statuses of finished redemptions kept on this node;
+     *     older ones are still read from the state store
+     * @param state store the statuses are shared through
+     */
+    RedemptionQueue(
+            int workers,
+            int capacity,
+            int batchSize,
+            int maxAttempts,
+            long initialBackoffMs,
+            long maxBackoffMs,
+            long redeemTimeoutMs,
+            long statusTtlMs,
+            long maxStatuses,
+            StateStore state) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.statuses = CacheBuilder.newBuilder()
+                .expireAfterWrite(statusTtlMs, TimeUnit.MILLISECONDS)
+                // only finished redemptions count; evicting a pending one would drop its job
+                .maximumWeight(maxStatuses)
+                .<String, PaymentStatus>weigher((refId, status) -> status.isTerminal() ? 1 : 0)
+                .build();
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.redeemTimeoutMs = redeemTimeoutMs;
+        this.statusTtlMs = statusTtlMs;
+        this.state = state;
+        this.retries = Executors.newSingleThreadScheduledExecutor(daemon("redemption-retry"));
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "redemption-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a redemption. A redemption for a reference ID that is already known is not queued
+     * again, unless it failed: a retried callback then replaces the failed status and queues the
+     * redemption anew.
+     *
+     * @param merchantKey key of the merchant the payment is for
+     * @param refId reference ID of the payment
+     * @param tokenId token to redeem
+     * @param type kind of token, e.g. "transfer"
+     * @param redemption starts the redemption, returning the ID of the resulting submission
+     * @return false if the queue is full
+     */
+    boolean submit(
+            String merchantKey,
+            String refId,
+            String tokenId,
+            String type,
+            Supplier<CompletableFuture<String>> redemption) {
+        PaymentStatus status = PaymentStatus.queued(merchantKey, refId, tokenId, type);
+        PaymentStatus known = statuses.asMap().putIfAbsent(refId, status);
+        if (known != null
+                && !(known.getState() == PaymentStatus.State.FAILED
+                        && statuses.asMap().replace(refId, known, status))) {
+            return true;
+        }
+        boolean claimed;
+        try {
+            String json = gson.toJson(status);
+            claimed = state.putIfAbsent(key(refId), json, statusTtlMs)
+                    || replaceFailed(key(refId), json);
+        } catch (RuntimeException e) {
+            // the status may have been stored anyway; drop it so that the callback can be
+            // retried rather than find a job that was never queued
+            statuses.invalidate(refId);
+            state.remove(key(refId));
+            throw e;
+        }
+        if (!claimed) {
+            // queued by another node
+            statuses.invalidate(refId);
+            return true;
+        }
+        if (!queue.offer(new Job(refId, redemption))) {
+            statuses.invalidate(refId);
+            state.remove(key(refId));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the shared status of a redemption that failed. The swap is a compare-and-set on
+     * the status that was read, so only one of several retried callbacks gets to queue it.
+     */
+    private boolean replaceFailed(String key, String json) {
+        String shared = state.get(key);
+        return shared != null
+                && gson.fromJson(shared, PaymentStatus.class).getState()
+                        == PaymentStatus.State.FAILED
+                && state.replace(key, shared, json, statusTtlMs);
+    }
+
+    /**
+     * Looks up the status of a queued redemption.
+     *
+     * @param refId reference ID of the payment
+     * @return status, or null if unknown
+     */
+    PaymentStatus status(String refId) {
+        PaymentStatus status = statuses.getIfPresent(refId);
+        if (status != null) {
+            return status;
+        }
+        String shared = state.get(key(refId));
+        return shared == null ? null : gson.fromJson(shared, PaymentStatus.class);
+    }
+
+    /**
+     * Returns the number of redemptions waiting to be started, including those waiting for a
+     * retry.
+     *
+     * @return queue depth
+     */
+    int depth() {
+        return queue.size() + retryDepth.get();
+    }
+
+    private void work() {
+        List<Job> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                runBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Redemption worker failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void runBatch(List<Job> batch) throws InterruptedException {
+        CompletableFuture<?>[] inFlight = new CompletableFuture<?>[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            inFlight[i] = start(batch.get(i));
+        }
+        try {
+            CompletableFuture.allOf(inFlight).get(redeemTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // the remaining redemptions complete on their own; don't hold the worker
+            logger.warn("Redemption batch of {} still running after {}ms",
+                    batch.size(), redeemTimeoutMs);
+        } catch (ExecutionException e) {
+            // failures are handled per job
+        }
+    }
+
+    private CompletableFuture<?> start(Job job) {
+        PaymentStatus status = update(job.refId, PaymentStatus::redeeming);
+        if (status == null) {
+            // status expired while queued
+            return CompletableFuture.completedFuture(null);
+        }
+        int attempt = status.getAttempts();
+        CompletableFuture<String> redemption;
+        try {
+            redemption = job.redemption.get();
+        } catch (RuntimeException e) {
+            redemption = new CompletableFuture<>();
+            redemption.completeExceptionally(e);
+        }
+        return redemption.whenComplete((resultId, error) -> {
+            if (error == null) {
+                update(job.refId, current -> current.succeeded(resultId));
+                return;
+            }
+            Throwable cause = Futures.unwrap(error);
+            if (attempt < maxAttempts && isRetryable(cause)) {
+                update(job.refId, current -> current.retrying(cause.toString()));
+                scheduleRetry(job, attempt);
+            } else {
+                logger.warn("Redemption of {} failed after {} attempts", job.refId, attempt, cause);
+                update(job.refId, current -> current.failed(cause.toString()));
+            }
+        });
+    }
+
+    private void scheduleRetry(Job job, int attempt) {
+        long backoffMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 30));
+        retryDepth.incrementAndGet();
+        retries.schedule(() -> {
+            retryDepth.decrementAndGet();
+            if (!queue.offer(job)) {
+                update(job.refId, current -> current.failed("Redemption queue is full"));
+            }
+        }, backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    private PaymentStatus update(
+            String refId,
+            UnaryOperator<PaymentStatus> transition) {
+        PaymentStatus updated = statuses.asMap()
+                .computeIfPresent(refId, (key, current) -> transition.apply(current));
+        if (updated != null) {
+            state.put(key(refId), gson.toJson(updated), statusTtlMs);
+        }
+        return updated;
+    }
+
+    private static String key(String refId) {
+        return "payment-status:" + refId;
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof TimeoutException) {
+            return true;
+        }
+        return error instanceof StatusRuntimeException
+                && RETRYABLE.contains(((StatusRuntimeException) error).getStatus().getCode());
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Job {
+        private final String refId;
+        private final Supplier<CompletableFuture<String>> redemption;
+
+        private Job(String refId, Supplier<CompletableFuture<String>> redemption) {
+            this.refId = refId;
+            this.redemption = redemption;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package io.token.sample;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.grpc.Status;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Makes redemption idempotent per token ID. Concurrent redemptions of the same token share a
+ * single future, and once a redemption succeeds later callers get its result without another
+ * SDK call. Failed redemptions are forgotten so they can be retried.
+ *
+ * <p>The table is split into lock stripes. Each stripe keeps its entries in insertion order and
+ * evicts the oldest completed ones once it holds more than its share of the maximum size, or
+ * once they are older than the TTL. Redemptions still in flight are never evicted, so a stripe
+ * may briefly hold more than its share while many are.
+ *
+ * <p>Across nodes, a redemption is claimed in the {@link StateStore} before it starts, and the
+ * claim is replaced by the result once it succeeds, so the token is redeemed once no matter
+ * which node each callback lands on. A node that finds the token claimed by a redemption still
+ * in flight elsewhere answers {@code UNAVAILABLE}, to be retried once that one completes.
+ *
+ * @param <T> redemption result
+ */
+final class RedemptionTable<T extends MessageLite> {
+    // value of a claim whose redemption hasn't completed yet
+    private static final String IN_FLIGHT = "";
+
+    private final Stripe<T>[] stripes;
+    private final int maxEntriesPerStripe;
+    private final long ttlMs;
+    private final String keyPrefix;
+    private final StateStore state;
+    private final Parser<T> parser;
+    private final long claimTtlMs;
+
+    /**
+     * Creates a table.
+     *
+     * @param name kind of token, keeping the table's state store keys apart from others'
+     * @param stripeCount number of lock stripes, rounded up to a power of two
+     * @param maxEntries maximum number of remembered redemptions
+     * @param ttlMs how long a completed redemption is remembered
+     * @param state store shared by all nodes
+     * @param parser parses the results saved in the state store
+     * @param claimTtlMs how long a redemption may stay claimed without completing, e.g.
+     *     because the node redeeming it went away
+     */
+    @SuppressWarnings("unchecked")
+    RedemptionTable(
+            String name,
+            int stripeCount,
+            long maxEntries,
+            long ttlMs,
+            StateStore state,
+            Parser<T> parser,
+            long claimTtlMs) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<>();
+        }
+        this.maxEntriesPerStripe = (int) Math.max(1, maxEntries / count);
+        this.ttlMs = ttlMs;
+        this.keyPrefix = "redeemed:" + name + ":";
+        this.state = state;
+        this.parser = parser;
+        this.claimTtlMs = claimTtlMs;
+    }
+
+    /**
+     * Returns the redemption of the given token, starting it only if no redemption of the token
+     * is in flight or remembered.
+     *
+     * @param tokenId token ID
+     * @param redemption starts the redemption
+     * @return redemption result
+     */
+    CompletableFuture<T> redeemOnce(String tokenId, Supplier<CompletableFuture<T>> redemption) {
+        Stripe<T> stripe = stripes[spread(tokenId.hashCode()) & (stripes.length - 1)];
+        long now = System.currentTimeMillis();
+        Entry<T> entry;
+        synchronized (stripe) {
+            stripe.evict(now, ttlMs, maxEntriesPerStripe);
+            Entry<T> existing = stripe.entries.get(tokenId);
+            if (existing != null) {
+                return existing.future;
+            }
+            entry = new Entry<>();
+            stripe.entries.put(tokenId, entry);
+        }
+
+        String key = keyPrefix + tokenId;
+        CompletableFuture<T> started;
+        boolean claimed = false;
+        try {
+            claimed = claim(key);
+            started = claimed ? redemption.get() : redeemedElsewhere(key);
+        } catch (RuntimeException e) {
+            started = new CompletableFuture<>();
+            started.completeExceptionally(e);
+        }
+        boolean owner = claimed;
+        started.whenComplete((result, error) -> {
+            if (error != null) {
+                synchronized (stripe) {
+                    stripe.entries.remove(tokenId, entry);
+                }
+                if (owner) {
+                    state.remove(key);
+                }
+                entry.future.completeExceptionally(error);
+            } else {
+                if (owner) {
+                    state.put(key, BaseEncoding.base64().encode(result.toByteArray()), ttlMs);
+                }
+                entry.completedAtMs = System.currentTimeMillis();
+                entry.future.complete(result);
+            }
+        });
+        return entry.future;
+    }
+
+    private boolean claim(String key) {
+        try {
+            return state.putIfAbsent(key, IN_FLIGHT, claimTtlMs);
+        } catch (StateStoreException e) {
+            // the claim may have been stored anyway; drop it so that the callback can be
+            // retried rather than find the token redeemed by another node until the claim expires
+            try {
+                state.remove(key);
+            } catch (StateStoreException removeFailed) {
+                e.addSuppressed(removeFailed);
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<T> redeemedElsewhere(String key) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        String saved = state.get(key);
+        if (saved == null || saved.equals(IN_FLIGHT)) {
+            result.completeExceptionally(new SdkUnavailableException(
+                    Status.UNAVAILABLE.withDescription("Token is being redeemed by another node"),
+                    1));
+            return result;
+        }
+        try {
+            result.complete(parser.parseFrom(BaseEncoding.base64().decode(saved)));
+        } catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+            result.completeExceptionally(new StateStoreException("Unreadable redemption", e));
+        }
+        return result;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Stripe<T> {
+        private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>();
+
+        private void evict(long now, long ttlMs, int maxEntries) {
+            Iterator<Map.Entry<String, Entry<T>>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<T> oldest = it.next().getValue();
+                if (oldest.completedAtMs == 0) {
+                    // in flight; forgetting it would let the token be redeemed a second time
+                    continue;
+                }
+                boolean expired = now - oldest.completedAtMs >= ttlMs;
+                if (!expired && entries.size() < maxEntries) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private volatile long completedAtMs;
+    }
+}
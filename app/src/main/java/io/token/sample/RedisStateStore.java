@@ -0,0 +1,504 @@
+package io.token.sample;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link StateStore} in a Redis server shared by all nodes, spoken to over the plain RESP
+ * protocol so that any Redis-compatible server, or a local stand-in, will do.
+ *
+ * <p>Writes that don't need an answer ({@link #put}, {@link #remove}) are queued and sent in
+ * order by a single writer thread, which pipelines up to {@code batchSize} of them per round
+ * trip. While the queue is full, writers wait up to {@code timeoutMs} for room.
+ * {@link #get}, {@link #putIfAbsent} and {@link #replace} are sent right away, over a pool of
+ * at most {@code connections} connections. A connection that fails takes the idle ones with it,
+ * since they most likely went away with the same server, and the command is retried once on a
+ * new connection; except a {@link #putIfAbsent} or {@link #replace} that may have reached the
+ * server: retrying it would find its own value and report a conflict, so it fails with
+ * {@link StateStoreException} instead. To keep that rare, such a command on a pooled connection
+ * is preceded by a PING, which finds a connection the server has dropped before the command is
+ * sent.
+ *
+ * <p>Values read or written on this node are kept in a near cache for {@code nearCacheTtlMs}.
+ * Every write is followed by a message on the {@value #INVALIDATIONS} channel, which all nodes
+ * subscribe to and drop the key from their near cache on. While that subscription is down the
+ * near cache is bypassed, and it is cleared when the subscription is restored. A value read
+ * while its key was being invalidated is not cached, so the invalidation isn't lost.
+ */
+final class RedisStateStore implements StateStore {
+    private static final Logger logger = LoggerFactory.getLogger(RedisStateStore.class);
+    private static final String INVALIDATIONS = "merchant-state:invalidate";
+    private static final long RECONNECT_DELAY_MS = 1000;
+    // SET only while the key holds ARGV[1]; answers like SET NX, nil when not stored
+    private static final String REPLACE_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then"
+            + " return redis.call('SET', KEYS[1], ARGV[2], 'PX', ARGV[3]) else return false end";
+    // invalidation counters, by key hash
+    private static final int VERSION_STRIPES = 1024;
+
+    private final String host;
+    private final int port;
+    private final int timeoutMs;
+    private final int batchSize;
+    private final Semaphore connectionPermits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final BlockingQueue<String[]> writes;
+    private final Cache<String, String> nearCache;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final LongAdder calls;
+    private final LongAdder nearCacheHits;
+    private final LongAdder droppedWrites;
+    private volatile boolean subscribed;
+
+    /**
+     * Creates the store and starts its writer and invalidation subscriber. Connections are
+     * opened when first needed.
+     *
+     * @param host Redis host
+     * @param port Redis port
+     * @param timeoutMs connect and read timeout, and how long a command waits for a connection
+     * @param connections maximum number of connections for {@link #get},
+     *     {@link #putIfAbsent} and {@link #replace}
+     * @param batchSize maximum number of writes per round trip
+     * @param queueCapacity maximum number of queued writes; further writes wait for room
+     * @param nearCacheSize maximum number of values cached on this node
+     * @param nearCacheTtlMs how long a value is cached on this node
+     * @param metrics metrics registry
+     */
+    RedisStateStore(
+            String host,
+            int port,
+            int timeoutMs,
+            int connections,
+            int batchSize,
+            int queueCapacity,
+            long nearCacheSize,
+            long nearCacheTtlMs,
+            Metrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMs = timeoutMs;
+        this.batchSize = batchSize;
+        this.connectionPermits = new Semaphore(connections);
+        this.writes = new ArrayBlockingQueue<>(queueCapacity);
+        this.nearCache = CacheBuilder.newBuilder()
+                .maximumSize(nearCacheSize)
+                .expireAfterWrite(nearCacheTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        this.calls = metrics.counter(
+                "merchant_state_store_round_trips_total",
+                "Round trips to the state store, counting a batch of writes as one.",
+                "backend",
+                "redis");
+        this.nearCacheHits = metrics.counter(
+                "merchant_state_store_near_cache_hits_total",
+                "State store reads answered from the near cache.",
+                "backend",
+                "redis");
+        this.droppedWrites = metrics.counter(
+                "merchant_state_store_dropped_writes_total",
+                "Queued state store writes lost because the store was unreachable.",
+                "backend",
+                "redis");
+        metrics.gauge(
+                "merchant_state_store_pending_writes",
+                "State store writes waiting to be sent.",
+                "backend",
+                "redis",
+                writes::size);
+        start("state-writer", this::writeLoop);
+        start("state-invalidations", this::subscribeLoop);
+    }
+
+    @Override
+    public String get(String key) {
+        if (subscribed) {
+            String cached = nearCache.getIfPresent(key);
+            if (cached != null) {
+                nearCacheHits.increment();
+                return cached;
+            }
+        }
+        long version = version(key);
+        Object value = call(true, "GET", key);
+        if (value != null) {
+            nearCache.put(key, (String) value);
+            if (version(key) != version) {
+                // invalidated while we were reading; what we read may already be stale
+                nearCache.invalidate(key);
+            }
+        }
+        return (String) value;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMs) {
+        invalidate(key);
+        nearCache.put(key, value);
+        write("SET", key, value, "PX", Long.toString(ttlMs));
+        write("PUBLISH", INVALIDATIONS, key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMs) {
+        if (call(false, "SET", key, value, "PX", Long.toString(ttlMs), "NX") == null) {
+            return false;
+        }
+        invalidate(key);
+        nearCache.put(key, value);
+        write("PUBLISH", INVALIDATIONS, key);
+        return true;
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value, long ttlMs) {
+        Object reply = call(
+                false, "EVAL", REPLACE_SCRIPT, "1", key, expected, value, Long.toString(ttlMs));
+        if (reply == null) {
+            return false;
+        }
+        invalidate(key);
+        nearCache.put(key, value);
+        write("PUBLISH", INVALIDATIONS, key);
+        return true;
+    }
+
+    @Override
+    public void remove(String key) {
+        invalidate(key);
+        write("DEL", key);
+        write("PUBLISH", INVALIDATIONS, key);
+    }
+
+    private void write(String... command) {
+        try {
+            // the writer is behind; apply backpressure rather than lose the write, and never
+            // send it past writes of the same key that are still queued
+            if (!writes.offer(command, timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new StateStoreException("State store writes are backed up");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateStoreException("Interrupted waiting to queue a state store write");
+        }
+    }
+
+    /**
+     * Sends a command on a pooled connection and waits for its reply.
+     *
+     * @param idempotent whether the command may be sent again after it may have reached the
+     *     server
+     */
+    private Object call(boolean idempotent, String... command) {
+        try {
+            if (!connectionPermits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new StateStoreException("No state store connection free");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateStoreException("Interrupted waiting for a state store connection");
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                Connection connection = attempt == 1 ? idle.pollFirst() : null;
+                boolean sent = false;
+                try {
+                    if (connection == null) {
+                        connection = new Connection(host, port, timeoutMs, timeoutMs);
+                    } else if (!idempotent) {
+                        connection.write("PING");
+                        connection.flush();
+                        calls.increment();
+                        connection.read();
+                    }
+                    connection.write(command);
+                    connection.flush();
+                    // a command the server got only in part is discarded with the connection
+                    sent = true;
+                    calls.increment();
+                    Object reply = connection.read();
+                    idle.offerFirst(connection);
+                    if (reply instanceof ServerError) {
+                        throw new StateStoreException(
+                                command[0] + " failed: " + ((ServerError) reply).message);
+                    }
+                    return reply;
+                } catch (IOException e) {
+                    close(connection);
+                    closeIdle();
+                    if (sent && !idempotent) {
+                        throw new StateStoreException("Lost the state store's answer", e);
+                    }
+                    if (attempt == 2) {
+                        throw new StateStoreException("State store unreachable", e);
+                    }
+                }
+            }
+        } finally {
+            connectionPermits.release();
+        }
+    }
+
+    private void closeIdle() {
+        Connection stale;
+        while ((stale = idle.pollFirst()) != null) {
+            close(stale);
+        }
+    }
+
+    private long version(String key) {
+        return versions.get(key.hashCode() & (VERSION_STRIPES - 1));
+    }
+
+    private void invalidate(String key) {
+        versions.incrementAndGet(key.hashCode() & (VERSION_STRIPES - 1));
+        nearCache.invalidate(key);
+    }
+
+    private void invalidateAll() {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        nearCache.invalidateAll();
+    }
+
+    private void writeLoop() {
+        List<String[]> batch = new ArrayList<>(batchSize);
+        Connection connection = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(writes.take());
+                writes.drainTo(batch, batchSize - 1);
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        if (connection == null) {
+                            connection = new Connection(host, port, timeoutMs, timeoutMs);
+                        }
+                        send(connection, batch);
+                        break;
+                    } catch (IOException e) {
+                        close(connection);
+                        connection = null;
+                        if (attempt == 2) {
+                            logger.error("Dropping {} state store writes", batch.size(), e);
+                            droppedWrites.add(batch.size());
+                            Thread.sleep(RECONNECT_DELAY_MS);
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("State store writer failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(Connection connection, List<String[]> batch) throws IOException {
+        for (String[] command : batch) {
+            connection.write(command);
+        }
+        connection.flush();
+        calls.increment();
+        for (String[] command : batch) {
+            Object reply = connection.read();
+            if (reply instanceof ServerError) {
+                logger.warn("State store {} failed: {}", command[0], ((ServerError) reply).message);
+            }
+        }
+    }
+
+    private void subscribeLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Connection connection = null;
+            try {
+                // no read timeout: the subscription is idle until another node writes
+                connection = new Connection(host, port, timeoutMs, 0);
+                connection.write("SUBSCRIBE", INVALIDATIONS);
+                connection.flush();
+                connection.read();
+                // anything may have changed while we weren't listening
+                invalidateAll();
+                subscribed = true;
+                while (true) {
+                    Object message = connection.read();
+                    if (message instanceof List && ((List<?>) message).size() == 3) {
+                        invalidate(String.valueOf(((List<?>) message).get(2)));
+                    }
+                }
+            } catch (IOException e) {
+                if (subscribed) {
+                    logger.warn("Lost the state store invalidation subscription", e);
+                }
+            } finally {
+                subscribed = false;
+                close(connection);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void start(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    private static final class ServerError {
+        private final String message;
+
+        private ServerError(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * One connection speaking RESP: commands are written as arrays of bulk strings, replies are
+     * read as Strings, Longs, Lists, null or {@link ServerError}.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+
+        private Connection(String host, int port, int connectTimeoutMs, int readTimeoutMs)
+                throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+                socket.setSoTimeout(readTimeoutMs);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedInputStream(socket.getInputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private void write(String... command) throws IOException {
+            out.write('*');
+            writeLine(Integer.toString(command.length));
+            for (String arg : command) {
+                byte[] bytes = arg.getBytes(UTF_8);
+                out.write('$');
+                writeLine(Integer.toString(bytes.length));
+                out.write(bytes);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+        }
+
+        private Object read() throws IOException {
+            int type = in.read();
+            if (type == -1) {
+                throw new EOFException("State store closed the connection");
+            }
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new ServerError(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$':
+                    int length = Integer.parseInt(line);
+                    if (length < 0) {
+                        return null;
+                    }
+                    byte[] bytes = new byte[length + 2];
+                    int read = 0;
+                    while (read < bytes.length) {
+                        int n = in.read(bytes, read, bytes.length - read);
+                        if (n == -1) {
+                            throw new EOFException("State store closed the connection");
+                        }
+                        read += n;
+                    }
+                    return new String(bytes, 0, length, UTF_8);
+                case '*':
+                    int count = Integer.parseInt(line);
+                    if (count < 0) {
+                        return null;
+                    }
+                    List<Object> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(read());
+                    }
+                    return items;
+                default:
+                    throw new IOException("Unexpected state store reply " + (char) type + line);
+            }
+        }
+
+        private void writeLine(String line) throws IOException {
+            out.write(line.getBytes(UTF_8));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c == -1) {
+                    throw new EOFException("State store closed the connection");
+                }
+                line.append((char) c);
+            }
+            in.read();
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
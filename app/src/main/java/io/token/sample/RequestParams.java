@@ -0,0 +1,42 @@
+package io.token.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Reads the callback parameters the Token popup sends as a JSON object. Payment parameters are
+ * read by {@link PaymentRequest}.
+ */
+final class RequestParams {
+    // Gson is thread-safe, and its adapter for the type is looked up once and then cached
+    private static final Gson GSON = new Gson();
+    private static final Type MAP_TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    private RequestParams() {
+    }
+
+    /**
+     * Parses a flat JSON object of strings.
+     *
+     * @param json JSON text
+     * @return parameters by name
+     * @throws InvalidRequestException if the JSON is missing or malformed
+     */
+    static Map<String, String> fromJson(String json) {
+        Map<String, String> params;
+        try {
+            params = GSON.fromJson(json, MAP_TYPE);
+        } catch (JsonParseException e) {
+            throw new InvalidRequestException("Malformed callback parameters", e);
+        }
+        if (params == null) {
+            throw new InvalidRequestException("Missing callback parameters");
+        }
+        return params;
+    }
+}
@@ -0,0 +1,23 @@
+package io.token.sample;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Thrown instead of making an SDK call that a {@link Bulkhead} won't let through, or that
+ * missed its deadline. Routes answer it with {@code 503 Service Unavailable} and a
+ * {@code Retry-After} header; being an {@code UNAVAILABLE} or {@code DEADLINE_EXCEEDED} status,
+ * it is retried like any other transient SDK failure.
+ */
+final class SdkUnavailableException extends StatusRuntimeException {
+    private final long retryAfterSeconds;
+
+    SdkUnavailableException(Status status, long retryAfterSeconds) {
+        super(status);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,49 @@
+package io.token.sample;
+
+import java.util.Locale;
+
+/**
+ * Reads configuration for the sample. A setting named {@code server.max-threads} is looked up
+ * first as the system property {@code -Dserver.max-threads=...} and then as the environment
+ * variable {@code SERVER_MAX_THREADS}; if neither is present the supplied default is used.
+ */
+final class Settings {
+    private Settings() {
+    }
+
+    /**
+     * Looks up a string setting.
+     *
+     * @param name setting name, e.g. "execution.mode"
+     * @param defaultValue value to use if the setting is absent
+     * @return configured value or the default
+     */
+    static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            String variable = name.replace('.', '_').replace('-', '_').toUpperCase(Locale.ROOT);
+            value = System.getenv(variable);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,17 @@
+package io.token.sample;
+
+/**
+ * Where the {@link StateStore} keeps its entries, selected with the {@code state.backend}
+ * setting.
+ */
+enum StateBackend {
+    /**
+     * In this process. Only correct with a single node, or with sticky sessions.
+     */
+    LOCAL,
+
+    /**
+     * In a Redis server shared by all nodes, with a near cache on each node.
+     */
+    REDIS
+}
@@ -0,0 +1,62 @@
+package io.token.sample;
+
+/**
+ * Key-value store for the state that has to outlive a request and be visible to every node
+ * behind the load balancer: the token requests issued for a CSRF token, redemption idempotency
+ * records and the status of queued redemptions. Selected with the {@code state.backend}
+ * setting.
+ *
+ * <p>Keys are namespaced by their callers, e.g. {@code request:{csrfToken}}. Every entry
+ * expires after its TTL.
+ */
+interface StateStore {
+    /**
+     * Looks up a value.
+     *
+     * @param key key
+     * @return value, or null if absent or expired
+     */
+    String get(String key);
+
+    /**
+     * Stores a value. The write may be applied asynchronously, but is visible to later reads
+     * on this node right away.
+     *
+     * @param key key
+     * @param value value
+     * @param ttlMs how long the value is kept
+     */
+    void put(String key, String value, long ttlMs);
+
+    /**
+     * Stores a value unless the key already has one, atomically across nodes.
+     *
+     * @param key key
+     * @param value value
+     * @param ttlMs how long the value is kept
+     * @return true if the value was stored
+     * @throws StateStoreException if the store can't be reached, or it's unknown whether the
+     *     value was stored
+     */
+    boolean putIfAbsent(String key, String value, long ttlMs);
+
+    /**
+     * Replaces a value only if the key still has the expected one, atomically across nodes.
+     *
+     * @param key key
+     * @param expected value the key must have
+     * @param value new value
+     * @param ttlMs how long the new value is kept
+     * @return true if the value was replaced
+     * @throws StateStoreException if the store can't be reached, or it's unknown whether the
+     *     value was replaced
+     */
+    boolean replace(String key, String expected, String value, long ttlMs);
+
+    /**
+     * Removes a value. The removal may be applied asynchronously.
+     *
+     * @param key key
+     */
+    void remove(String key);
+}
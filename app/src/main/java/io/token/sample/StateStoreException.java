@@ -0,0 +1,15 @@
+package io.token.sample;
+
+/**
+ * Thrown when the {@link StateStore} can't be reached or rejects a command. Routes answer it
+ * with {@code 503 Service Unavailable}.
+ */
+final class StateStoreException extends RuntimeException {
+    StateStoreException(String message) {
+        super(message);
+    }
+
+    StateStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
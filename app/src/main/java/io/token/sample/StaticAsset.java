@@ -0,0 +1,116 @@
+package io.token.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A static file held in memory together with its gzip-compressed form and strong ETags for
+ * both representations, all computed once at startup.
+ */
+final class StaticAsset {
+    private final String path;
+    private final String contentType;
+    private final String cacheControl;
+    private final byte[] identity;
+    private final byte[] gzip;
+    private final String identityEtag;
+    private final String gzipEtag;
+
+    /**
+     * Creates an asset.
+     *
+     * @param path path the asset is served at
+     * @param contentType content type of the asset
+     * @param cacheControl Cache-Control header value
+     * @param content uncompressed content
+     * @param compress whether to pre-compute a gzip representation
+     */
+    StaticAsset(
+            String path,
+            String contentType,
+            String cacheControl,
+            byte[] content,
+            boolean compress) {
+        this.path = path;
+        this.contentType = contentType;
+        this.cacheControl = cacheControl;
+        this.identity = content;
+        String hash = hash(content);
+        this.identityEtag = "\"" + hash + "\"";
+        byte[] compressed = compress ? gzip(content) : null;
+        // only keep the compressed form if it actually saves bytes
+        if (compressed != null && compressed.length < content.length) {
+            this.gzip = compressed;
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+        } else {
+            this.gzip = null;
+            this.gzipEtag = null;
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getCacheControl() {
+        return cacheControl;
+    }
+
+    byte[] getIdentity() {
+        return identity;
+    }
+
+    String getIdentityEtag() {
+        return identityEtag;
+    }
+
+    /**
+     * Returns the gzip representation.
+     *
+     * @return compressed content, or null if the asset isn't served compressed
+     */
+    byte[] getGzip() {
+        return gzip;
+    }
+
+    String getGzipEtag() {
+        return gzipEtag;
+    }
+
+    /**
+     * Returns a short content hash, used to fingerprint asset names.
+     *
+     * @param content content
+     * @return first 16 hex digits of the SHA-256 of the content
+     */
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,181 @@
+package io.token.sample;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.servlet.http.HttpServletResponse;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Serves the sample's web page, script, stylesheet and images from memory.
+ *
+ * <p>Every asset is pre-compressed at startup and served gzip-encoded when the browser accepts
+ * it. Responses carry a strong ETag, so conditional requests are answered with 304. Assets can
+ * also be published under a fingerprinted name such as {@code /script.0123456789abcdef.js};
+ * those responses are marked immutable, and {@link #rewriteReferences(String)} points the page
+ * at them.
+ */
+final class StaticAssets {
+    private static final String REVALIDATE = "no-cache";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private final boolean compress;
+    private final Map<String, StaticAsset> assets = new LinkedHashMap<>();
+    private final Map<String, String> fingerprinted = new LinkedHashMap<>();
+
+    /**
+     * Creates an empty set of assets.
+     *
+     * @param compress whether to serve gzip-encoded responses
+     */
+    StaticAssets(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Adds an asset under its plain path; browsers revalidate it on every use.
+     *
+     * @param path path, e.g. "/"
+     * @param contentType content type
+     * @param content content
+     */
+    void add(String path, String contentType, byte[] content) {
+        assets.put(path, new StaticAsset(path, contentType, REVALIDATE, content, compress));
+    }
+
+    /**
+     * Adds an asset under its plain path and under a fingerprinted path that browsers may cache
+     * forever.
+     *
+     * @param path path, e.g. "/script.js"
+     * @param contentType content type
+     * @param content content
+     * @return fingerprinted path
+     */
+    String addFingerprinted(String path, String contentType, byte[] content) {
+        add(path, contentType, content);
+        int dot = path.lastIndexOf('.');
+        String hash = StaticAsset.hash(content);
+        String fingerprintedPath = dot > path.lastIndexOf('/')
+                ? path.substring(0, dot) + "." + hash + path.substring(dot)
+                : path + "." + hash;
+        assets.put(fingerprintedPath, new StaticAsset(
+                fingerprintedPath,
+                contentType,
+                IMMUTABLE,
+                content,
+                compress));
+        fingerprinted.put(path, fingerprintedPath);
+        return fingerprintedPath;
+    }
+
+    /**
+     * Replaces quoted references to fingerprinted assets, e.g. {@code src="/script.js"}, with
+     * their fingerprinted paths.
+     *
+     * @param html page
+     * @return page referring to the fingerprinted assets
+     */
+    String rewriteReferences(String html) {
+        String rewritten = html;
+        for (Map.Entry<String, String> entry : fingerprinted.entrySet()) {
+            rewritten = rewritten.replace(
+                    "\"" + entry.getKey() + "\"",
+                    "\"" + entry.getValue() + "\"");
+        }
+        return rewritten;
+    }
+
+    /**
+     * Registers a GET route for every asset.
+     *
+     * @param get registers a GET route, e.g. {@code Spark::get}
+     */
+    void registerRoutes(BiConsumer<String, Route> get) {
+        for (StaticAsset asset : assets.values()) {
+            get.accept(asset.getPath(), (req, res) -> serve(asset, req, res));
+        }
+    }
+
+    private static String serve(StaticAsset asset, Request req, Response res)
+            throws IOException {
+        boolean gzip = asset.getGzip() != null && acceptsGzip(req.headers("Accept-Encoding"));
+        String etag = gzip ? asset.getGzipEtag() : asset.getIdentityEtag();
+
+        HttpServletResponse raw = res.raw();
+        raw.setHeader("ETag", etag);
+        raw.setHeader("Cache-Control", asset.getCacheControl());
+        if (asset.getGzip() != null) {
+            raw.setHeader("Vary", "Accept-Encoding");
+        }
+
+        if (matches(req.headers("If-None-Match"), etag)) {
+            raw.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            raw.flushBuffer();
+            return "";
+        }
+
+        byte[] body = gzip ? asset.getGzip() : asset.getIdentity();
+        raw.setStatus(HttpServletResponse.SC_OK);
+        raw.setContentType(asset.getContentType());
+        raw.setContentLength(body.length);
+        if (gzip) {
+            raw.setHeader("Content-Encoding", "gzip");
+        }
+        // write and commit the response here; Spark would otherwise gzip the body again
+        OutputStream out = raw.getOutputStream();
+        out.write(body);
+        out.flush();
+        return "";
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") && isZero(param.substring(2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
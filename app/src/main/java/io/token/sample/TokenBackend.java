@@ -0,0 +1,16 @@
+package io.token.sample;
+
+/**
+ * What the routes talk to, selected with the {@code token.backend} setting.
+ */
+enum TokenBackend {
+    /**
+     * The Token Sandbox, through the Token SDK.
+     */
+    SDK,
+
+    /**
+     * The in-process {@link FakeTokenGateway}, for load testing.
+     */
+    FAKE
+}
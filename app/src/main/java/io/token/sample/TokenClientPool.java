@@ -0,0 +1,125 @@
+package io.token.sample;
+
+import io.token.tpp.Member;
+import io.token.tpp.TokenClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+
+/**
+ * A fixed set of {@link TokenClient}s, each with its own gRPC channel and HTTP/2 connection, so
+ * that a node's SDK calls are not all limited by one connection's concurrent streams.
+ *
+ * <p>A member is bound to the client it was loaded with, so a member used over the pool is
+ * loaded once per client and its calls are spread over those copies by
+ * {@link PooledTokenGateway}. The calls in flight on each channel are counted across all
+ * members, and exported as {@code merchant_sdk_channel_in_flight}.
+ */
+final class TokenClientPool {
+    private final List<TokenClient> clients;
+    private final ChannelSelection selection;
+    private final AtomicIntegerArray inFlight;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates the pool.
+     *
+     * @param clients one client per channel
+     * @param selection how calls pick a channel
+     * @param metrics metrics registry
+     */
+    TokenClientPool(List<TokenClient> clients, ChannelSelection selection, Metrics metrics) {
+        this.clients = clients;
+        this.selection = selection;
+        this.inFlight = new AtomicIntegerArray(clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            int channel = i;
+            metrics.gauge(
+                    "merchant_sdk_channel_in_flight",
+                    "SDK calls in flight, by gRPC channel.",
+                    "channel",
+                    Integer.toString(channel),
+                    () -> inFlight.get(channel));
+        }
+    }
+
+    /**
+     * Returns the client that members are created and first loaded with.
+     *
+     * @return first client
+     */
+    TokenClient primary() {
+        return clients.get(0);
+    }
+
+    /**
+     * Creates the gateway of a member, spreading its calls over every channel of the pool.
+     *
+     * @param mode execution mode
+     * @param member member loaded with the {@link #primary()} client
+     * @return gateway
+     */
+    TokenGateway gateway(ExecutionMode mode, Member member) {
+        return gateway(mode, member, client -> client.getMemberBlocking(member.memberId()));
+    }
+
+    /**
+     * Creates the gateway of a member, spreading its calls over every channel of the pool.
+     *
+     * @param mode execution mode
+     * @param member member loaded with the {@link #primary()} client
+     * @param load loads the same member with each of the other clients
+     * @return gateway
+     */
+    TokenGateway gateway(ExecutionMode mode, Member member, Function<TokenClient, Member> load) {
+        TokenGateway first = TokenGateway.create(mode, primary(), member);
+        if (clients.size() == 1) {
+            return first;
+        }
+        List<TokenGateway> channels = new ArrayList<>(clients.size());
+        channels.add(first);
+        for (TokenClient client : clients.subList(1, clients.size())) {
+            channels.add(TokenGateway.create(mode, client, load.apply(client)));
+        }
+        return new PooledTokenGateway(this, channels);
+    }
+
+    /**
+     * Picks the channel of a call and counts the call as in flight on it.
+     *
+     * @return channel index
+     */
+    int acquire() {
+        int channel;
+        if (selection == ChannelSelection.ROUND_ROBIN) {
+            channel = Math.floorMod(next.getAndIncrement(), clients.size());
+        } else {
+            // start the scan at a rotating channel so that ties don't all go to the first
+            int start = Math.floorMod(next.getAndIncrement(), clients.size());
+            channel = start;
+            int fewest = inFlight.get(start);
+            for (int i = 1; i < clients.size() && fewest > 0; i++) {
+                int candidate = (start + i) % clients.size();
+                int count = inFlight.get(candidate);
+                if (count < fewest) {
+                    channel = candidate;
+                    fewest = count;
+                }
+            }
+        }
+        inFlight.incrementAndGet(channel);
+        return channel;
+    }
+
+    /**
+     * Counts a call as no longer in flight.
+     *
+     * @param channel channel index returned by {@link #acquire()}
+     */
+    void release(int channel) {
+        inFlight.decrementAndGet(channel);
+    }
+}
@@ -0,0 +1,57 @@
+package io.token.sample;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.Member;
+import io.token.tpp.TokenClient;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The Token SDK calls made by the merchant routes. Every call returns a future so that the
+ * routes are written the same way regardless of the {@link ExecutionMode}.
+ */
+interface TokenGateway {
+    /**
+     * Creates the gateway for the given execution mode.
+     *
+     * @param mode execution mode
+     * @param tokenClient Token SDK client
+     * @param member merchant member
+     * @return gateway
+     */
+    static TokenGateway create(ExecutionMode mode, TokenClient tokenClient, Member member) {
+        return mode == ExecutionMode.ASYNC
+                ? new AsyncTokenGateway(tokenClient, member)
+                : new BlockingTokenGateway(tokenClient, member);
+    }
+
+    String memberId();
+
+    CompletableFuture<Alias> firstAlias();
+
+    CompletableFuture<String> storeTokenRequest(TokenRequest request);
+
+    CompletableFuture<String> generateTokenRequestUrl(String requestId);
+
+    CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken);
+
+    CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken);
+
+    CompletableFuture<Token> getToken(String tokenId);
+
+    CompletableFuture<Transfer> redeemToken(Token token);
+
+    CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId);
+
+    CompletableFuture<Transfer> getTransfer(String transferId);
+}
@@ -0,0 +1,52 @@
+package io.token.sample;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds Token request URLs locally from a template instead of calling
+ * {@code generateTokenRequestUrl} for every stored request. The template contains a
+ * {@code {requestId}} placeholder, e.g.
+ * {@code https://web-app.sandbox.token.io/app/request-token/{requestId}}.
+ */
+final class TokenRequestUrlGenerator {
+    static final String REQUEST_ID_PLACEHOLDER = "{requestId}";
+
+    private final String prefix;
+    private final String suffix;
+    private final LongAdder remoteCallsAvoided = new LongAdder();
+
+    /**
+     * Creates a generator.
+     *
+     * @param template URL template containing {@value #REQUEST_ID_PLACEHOLDER}
+     */
+    TokenRequestUrlGenerator(String template) {
+        int index = template.indexOf(REQUEST_ID_PLACEHOLDER);
+        if (index < 0) {
+            throw new IllegalArgumentException(
+                    "Token request URL template must contain " + REQUEST_ID_PLACEHOLDER);
+        }
+        this.prefix = template.substring(0, index);
+        this.suffix = template.substring(index + REQUEST_ID_PLACEHOLDER.length());
+    }
+
+    /**
+     * Generates the Token request URL for a stored token request.
+     *
+     * @param requestId token request ID returned by {@code storeTokenRequest}
+     * @return Token request URL
+     */
+    String generate(String requestId) {
+        remoteCallsAvoided.increment();
+        return prefix + requestId + suffix;
+    }
+
+    /**
+     * Returns the number of URLs generated locally.
+     *
+     * @return remote calls avoided
+     */
+    long remoteCallsAvoided() {
+        return remoteCallsAvoided.sum();
+    }
+}
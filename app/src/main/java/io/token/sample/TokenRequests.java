@@ -0,0 +1,113 @@
+package io.token.sample;
+
+import io.token.proto.common.account.AccountProtos.BankAccount;
+import io.token.proto.common.transferinstructions.TransferInstructionsProtos;
+import io.token.proto.common.transferinstructions.TransferInstructionsProtos.TransferDestination;
+import io.token.proto.common.transferinstructions.TransferInstructionsProtos.TransferEndpoint;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tokenrequest.TokenRequest.TransferBuilder;
+
+import java.time.LocalDate;
+import java.util.Collections;
+
+/**
+ * Builds the token requests stored by the payment routes.
+ */
+final class TokenRequests {
+    private TokenRequests() {
+    }
+
+    /**
+     * Builds a transfer token request.
+     *
+     * @param payment amount, currency and description of the payment
+     * @param metadata merchant member metadata
+     * @param callbackPath path of the endpoint the bank redirects back to
+     * @param refId reference ID of the token request
+     * @param csrfToken CSRF token set in the browser cookie
+     * @param transferType "DEFAULT" or "ONE_STEP"
+     * @return token request
+     */
+    static TokenRequest transfer(
+            PaymentRequest payment,
+            MemberMetadata metadata,
+            String callbackPath,
+            String refId,
+            String csrfToken,
+            String transferType) {
+        double amount = payment.getAmountAsDouble();
+        String currency = payment.getCurrency();
+        String description = payment.getDescription();
+        TransferDestination destination = TransferDestination.newBuilder()
+                .setSepa(TransferDestination.Sepa.newBuilder().setBic("bic")
+                        .setIban("DE16700222000072880129").build())
+                .setCustomerData(TransferInstructionsProtos.CustomerData.newBuilder()
+                        .addLegalNames("merchant-sample-java").build())
+                .build();
+
+        // This is testing account for one of bank to test one step support
+        // Will need bank credentials to complete the flow. Test Credentials are available.
+        String bankId = "ngp-cbi-05034";
+        TransferEndpoint source = TransferEndpoint.newBuilder()
+                .setAccount(BankAccount.newBuilder()
+                        .setIban(BankAccount.Iban.newBuilder()
+                                .setIban("IT77O0848283352871412938123").build())
+                        .build())
+                .setBankId(bankId).build();
+
+        // create the token request builder
+        TransferBuilder tokenRequestBuilder =
+                TokenRequest.transferTokenRequestBuilder(amount, currency)
+                        .setDescription(description).addDestination(destination)
+                        .setRefId(refId)
+                        .setToAlias(metadata.getAlias())
+                        .setToMemberId(metadata.getMemberId())
+                        .setRedirectUrl(metadata.redirectUrl(callbackPath))
+                        .setCsrfToken(csrfToken);
+
+        if (transferType.equals("ONE_STEP")) {
+            tokenRequestBuilder.setSource(source);
+            tokenRequestBuilder.setBankId(bankId);
+        }
+        return tokenRequestBuilder.build();
+    }
+
+    /**
+     * Builds a monthly standing order token request running for a year from today.
+     *
+     * @param payment amount, currency and description of the payment
+     * @param metadata merchant member metadata
+     * @param callbackPath path of the endpoint the bank redirects back to
+     * @param refId reference ID of the token request
+     * @param csrfToken CSRF token set in the browser cookie
+     * @return token request
+     */
+    static TokenRequest standingOrder(
+            PaymentRequest payment,
+            MemberMetadata metadata,
+            String callbackPath,
+            String refId,
+            String csrfToken) {
+        double amount = payment.getAmountAsDouble();
+        String currency = payment.getCurrency();
+        String description = payment.getDescription();
+        TransferDestination destination = TransferDestination.newBuilder()
+                .setSepa(TransferDestination.Sepa.newBuilder().setBic("bic")
+                        .setIban("DE16700222000072880129").build())
+                .setCustomerData(TransferInstructionsProtos.CustomerData.newBuilder()
+                        .addLegalNames("merchant-sample-java").build())
+                .build();
+        LocalDate startDate = LocalDate.now();
+        LocalDate endDate = startDate.plusYears(1);
+
+        // create the token request
+        return TokenRequest
+                .standingOrderRequestBuilder(amount, currency, "MNTH", startDate.toString(),
+                        endDate.toString(), Collections.singletonList(destination))
+                .setDescription(description).setRefId(refId)
+                .setToAlias(metadata.getAlias())
+                .setToMemberId(metadata.getMemberId())
+                .setRedirectUrl(metadata.redirectUrl(callbackPath))
+                .setCsrfToken(csrfToken).build();
+    }
+}
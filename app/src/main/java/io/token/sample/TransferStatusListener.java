@@ -0,0 +1,23 @@
+package io.token.sample;
+
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+
+/**
+ * Told by the {@link TransferTracker} whenever a tracked transfer changes status. Called on the
+ * tracker's thread, so implementations must not block.
+ */
+interface TransferStatusListener {
+    /**
+     * Called when a transfer's status changes.
+     *
+     * @param transferId transfer ID
+     * @param previous status before the change
+     * @param current new status
+     * @param terminal whether the transfer won't change again and is no longer tracked
+     */
+    void onStatusChange(
+            String transferId,
+            TransactionStatus previous,
+            TransactionStatus current,
+            boolean terminal);
+}
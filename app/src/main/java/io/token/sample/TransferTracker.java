@@ -0,0 +1,351 @@
+package io.token.sample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows redeemed transfers until the bank settles or rejects them.
+ *
+ * <p>All tracking state is owned by one scheduler thread. Transfers wait for their next poll in
+ * a hashed timing wheel of {@code wheelSize} slots that advances every {@code tickMs}, so
+ * tracking tens of thousands of transfers costs no thread or timer per transfer. Each tick
+ * polls the transfers that came due, at most {@code maxPollsPerTick} of them; the rest wait for
+ * the next tick. After every poll that finds a transfer still open, the delay to its next poll
+ * doubles, from {@code initialDelayMs} up to {@code maxDelayMs}. A transfer stops being tracked
+ * once it reaches a terminal status or after {@code maxAgeMs}.
+ *
+ * <p>Once every transfer has backed off to {@code maxDelayMs}, the tracker keeps up with
+ * {@code maxPollsPerSecond * maxDelayMs / 1000} of them; past that, due transfers queue up and
+ * are polled later than their delay says. At most {@code maxTracked} transfers are tracked at
+ * once, and transfers redeemed beyond that are counted and not followed.
+ *
+ * <p>Status changes are published to {@link TransferStatusListener}s, and the last known
+ * status of at most {@code maxHistory} transfers is kept for {@code historyTtlMs} after
+ * tracking stops.
+ */
+final class TransferTracker {
+    private static final Logger logger = LoggerFactory.getLogger(TransferTracker.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final long tickMs;
+    private final List<Tracked>[] wheel;
+    private final ArrayDeque<Tracked> due = new ArrayDeque<>();
+    private final int maxPollsPerTick;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final long maxAgeMs;
+    private final int maxTracked;
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Cache<String, Tracked> history;
+    private final List<TransferStatusListener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder polls;
+    private final LongAdder statusChanges;
+    private final LongAdder untracked;
+    private long tick;
+
+    /**
+     * Creates the tracker and starts its scheduler.
+     *
+     * @param tickMs how often the timing wheel advances
+     * @param wheelSize number of slots of the timing wheel
+     * @param maxPollsPerSecond maximum rate of status polls
+     * @param initialDelayMs delay before the first poll of a transfer
+     * @param maxDelayMs upper bound of the delay between polls of a transfer
+     * @param maxAgeMs how long a transfer is tracked at most
+     * @param maxTracked maximum number of transfers tracked at once
+     * @param historyTtlMs how long the last status of a transfer is kept after tracking stops
+     * @param maxHistory maximum number of finished transfers whose last status is kept
+     * @param metrics metrics registry
+     */
+    @SuppressWarnings("unchecked")
+    TransferTracker(
+            long tickMs,
+            int wheelSize,
+            int maxPollsPerSecond,
+            long initialDelayMs,
+            long maxDelayMs,
+            long maxAgeMs,
+            int maxTracked,
+            long historyTtlMs,
+            long maxHistory,
+            Metrics metrics) {
+        this.tickMs = tickMs;
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.maxPollsPerTick = (int) Math.max(1, maxPollsPerSecond * tickMs / 1000);
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAgeMs = maxAgeMs;
+        this.maxTracked = maxTracked;
+        this.history = CacheBuilder.newBuilder()
+                .expireAfterWrite(historyTtlMs, TimeUnit.MILLISECONDS)
+                .maximumSize(maxHistory)
+                .build();
+        this.polls = metrics.counter(
+                "merchant_transfer_status_polls_total",
+                "Transfer status polls made by the tracker.",
+                "tracker",
+                "transfers");
+        this.statusChanges = metrics.counter(
+                "merchant_transfer_status_changes_total",
+                "Transfer status changes seen by the tracker.",
+                "tracker",
+                "transfers");
+        this.untracked = metrics.counter(
+                "merchant_transfers_untracked_total",
+                "Redeemed transfers not tracked because the tracker was full.",
+                "tracker",
+                "transfers");
+        metrics.gauge(
+                "merchant_transfers_tracked",
+                "Transfers waiting for a terminal status.",
+                tracked::size);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-tracker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes status changes to a listener.
+     *
+     * @param listener listener
+     */
+    void addListener(TransferStatusListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts tracking a redeemed transfer, unless its status is already terminal or the tracker
+     * is full.
+     *
+     * @param merchantKey key of the merchant that redeemed the transfer
+     * @param gateway gateway of that merchant
+     * @param transfer redeemed transfer
+     */
+    void track(String merchantKey, TokenGateway gateway, Transfer transfer) {
+        Tracked entry = new Tracked(merchantKey, gateway, transfer.getId(), transfer.getStatus());
+        if (isTerminal(entry.status)) {
+            history.put(entry.transferId, entry);
+            return;
+        }
+        if (tracked.size() >= maxTracked) {
+            untracked.increment();
+            logger.warn("Not tracking transfer {}; already tracking {}", entry.transferId,
+                    tracked.size());
+            return;
+        }
+        if (tracked.putIfAbsent(entry.transferId, entry) == null) {
+            scheduler.execute(() -> schedule(entry, initialDelayMs));
+        }
+    }
+
+    /**
+     * Returns what is known about a transfer.
+     *
+     * @param transferId transfer ID
+     * @return status snapshot, or null if the transfer is neither tracked nor recently finished
+     */
+    Snapshot status(String transferId) {
+        Tracked entry = tracked.get(transferId);
+        if (entry == null) {
+            entry = history.getIfPresent(transferId);
+        }
+        return entry == null ? null : entry.snapshot();
+    }
+
+    int size() {
+        return tracked.size();
+    }
+
+    private void advance() {
+        try {
+            tick++;
+            List<Tracked> slot = wheel[(int) (tick % wheel.length)];
+            Iterator<Tracked> entries = slot.iterator();
+            while (entries.hasNext()) {
+                Tracked entry = entries.next();
+                // entries further away than one turn of the wheel stay for a later round
+                if (entry.dueTick <= tick) {
+                    entries.remove();
+                    // the queue drains at maxPollsPerTick, so its length says when this is polled
+                    entry.nextPollAtMs = System.currentTimeMillis()
+                            + due.size() / maxPollsPerTick * tickMs;
+                    due.add(entry);
+                }
+            }
+            for (int i = 0; i < maxPollsPerTick && !due.isEmpty(); i++) {
+                poll(due.poll());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Transfer tracker tick failed", e);
+        }
+    }
+
+    private void poll(Tracked entry) {
+        if (System.currentTimeMillis() - entry.trackedAtMs > maxAgeMs) {
+            logger.warn("Giving up on transfer {}, still {} after {}ms",
+                    entry.transferId, entry.status, maxAgeMs);
+            finish(entry);
+            return;
+        }
+        polls.increment();
+        entry.polls++;
+        entry.gateway.getTransfer(entry.transferId).whenComplete((transfer, error) ->
+                scheduler.execute(() -> onPolled(entry, transfer, error)));
+    }
+
+    private void onPolled(Tracked entry, Transfer transfer, Throwable error) {
+        if (error != null) {
+            logger.debug("Polling transfer {} failed", entry.transferId, Futures.unwrap(error));
+        } else if (transfer.getStatus() != entry.status) {
+            TransactionStatus previous = entry.status;
+            entry.status = transfer.getStatus();
+            statusChanges.increment();
+            boolean terminal = isTerminal(entry.status);
+            for (TransferStatusListener listener : listeners) {
+                try {
+                    listener.onStatusChange(entry.transferId, previous, entry.status, terminal);
+                } catch (RuntimeException e) {
+                    logger.error("Transfer status listener failed", e);
+                }
+            }
+            if (terminal) {
+                finish(entry);
+                return;
+            }
+        }
+        entry.delayMs = Math.min(maxDelayMs, entry.delayMs * 2);
+        schedule(entry, entry.delayMs);
+    }
+
+    private void schedule(Tracked entry, long delayMs) {
+        if (entry.delayMs == 0) {
+            entry.delayMs = delayMs;
+        }
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        entry.dueTick = tick + ticks;
+        entry.nextPollAtMs = System.currentTimeMillis() + ticks * tickMs;
+        wheel[(int) (entry.dueTick % wheel.length)].add(entry);
+    }
+
+    private void finish(Tracked entry) {
+        tracked.remove(entry.transferId);
+        entry.nextPollAtMs = 0;
+        history.put(entry.transferId, entry);
+    }
+
+    private static boolean isTerminal(TransactionStatus status) {
+        return status == TransactionStatus.SUCCESS
+                || status.name().startsWith("FAILURE_");
+    }
+
+    /**
+     * What the tracker knows about a transfer at one point in time.
+     */
+    static final class Snapshot {
+        private final String merchantKey;
+        private final String transferId;
+        private final TransactionStatus status;
+        private final boolean terminal;
+        private final int polls;
+        private final long nextPollAtMs;
+
+        private Snapshot(
+                String merchantKey,
+                String transferId,
+                TransactionStatus status,
+                boolean terminal,
+                int polls,
+                long nextPollAtMs) {
+            this.merchantKey = merchantKey;
+            this.transferId = transferId;
+            this.status = status;
+            this.terminal = terminal;
+            this.polls = polls;
+            this.nextPollAtMs = nextPollAtMs;
+        }
+
+        String getMerchantKey() {
+            return merchantKey;
+        }
+
+        String getTransferId() {
+            return transferId;
+        }
+
+        TransactionStatus getStatus() {
+            return status;
+        }
+
+        boolean isTerminal() {
+            return terminal;
+        }
+
+        int getPolls() {
+            return polls;
+        }
+
+        /**
+         * Returns when the transfer will next be polled.
+         *
+         * @return time in milliseconds, or 0 if it is no longer tracked
+         */
+        long getNextPollAtMs() {
+            return nextPollAtMs;
+        }
+    }
+
+    /**
+     * A tracked transfer. Written only on the scheduler thread; the volatile fields are read by
+     * {@link #status(String)}.
+     */
+    private static final class Tracked {
+        private final String merchantKey;
+        private final TokenGateway gateway;
+        private final String transferId;
+        private final long trackedAtMs = System.currentTimeMillis();
+        private volatile TransactionStatus status;
+        private volatile int polls;
+        private volatile long nextPollAtMs;
+        private long delayMs;
+        private long dueTick;
+
+        private Tracked(
+                String merchantKey,
+                TokenGateway gateway,
+                String transferId,
+                TransactionStatus status) {
+            this.merchantKey = merchantKey;
+            this.gateway = gateway;
+            this.transferId = transferId;
+            this.status = status;
+        }
+
+        private Snapshot snapshot() {
+            return new Snapshot(
+                    merchantKey, transferId, status, isTerminal(status), polls, nextPollAtMs);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.token.sample;
+
+/**
+ * Thrown when a request names a merchant that this server has no keys or mapping for. Routes
+ * answer it with {@code 404 Not Found}.
+ */
+final class UnknownMerchantException extends RuntimeException {
+    UnknownMerchantException(String message) {
+        super(message);
+    }
+}
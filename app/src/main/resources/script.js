@@ -24,15 +24,15 @@ function clean() {
 function tokenRedirectPath() {
     var path = '';
     if (selectedTransferType === 'STANDING_ORDER') {
-        path = '/standing-order?';
+        path = 'standing-order?';
     } else if (selectedTransferType === 'FUTURE_DATED') {
-        path = '/future-dated?';
+        path = 'future-dated?';
     } else if (selectedTransferType === 'ONE_STEP') {
-        path = '/one-step-payment?';
+        path = 'one-step-payment?';
     } else if (selectedTransferType === 'CROSS_BORDER') {
-        path = '/cross-border?';
+        path = 'cross-border?';
     } else {
-        path = '/transfer?'
+        path = 'transfer?'
     }
     return path;
 }
@@ -40,15 +40,15 @@ function tokenRedirectPath() {
 function redeemTokenPopUp() {
     var path = "";
     if (selectedTransferType === 'STANDING_ORDER') {
-        path = '/redeem-standing-order-popup';
+        path = 'redeem-standing-order-popup';
     } else if (selectedTransferType === 'FUTURE_DATED') {
-        path = '/redeem-future-dated-popup';
+        path = 'redeem-future-dated-popup';
     } else if (selectedTransferType === 'ONE_STEP') {
-        path = '/redirect-one-step-payment-popup';
+        path = 'redirect-one-step-payment-popup';
     } else if (selectedTransferType === 'CROSS_BORDER') {
-        path = '/redeem-popup';
+        path = 'redeem-popup';
     } else {
-        path = '/redeem-popup';
+        path = 'redeem-popup';
     }
     return path;
 }
@@ -56,15 +56,15 @@ function redeemTokenPopUp() {
 function tokenPopupPath() {
     var path = "";
     if (selectedTransferType === 'STANDING_ORDER') {
-        path = '/standing-order-popup?';
+        path = 'standing-order-popup?';
     } else if (selectedTransferType === 'FUTURE_DATED') {
-        path = '/future-dated-popup?';
+        path = 'future-dated-popup?';
     } else if (selectedTransferType === 'ONE_STEP') {
-        path = '/one-step-payment-popup?';
+        path = 'one-step-payment-popup?';
     } else if (selectedTransferType === 'CROSS_BORDER') {
-        path = '/cross-border-popup?';
+        path = 'cross-border-popup?';
     } else {
-        path = '/transfer-popup?';
+        path = 'transfer-popup?';
     }
     return path;
 }
@@ -0,0 +1,212 @@
+package io.token.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PaymentJournalTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("journal").toPath();
+    }
+
+    @Test
+    public void recoversRecordsAfterRestart() throws Exception {
+        PaymentJournal journal = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        journal.append(JournalRecord.requested("shop", "transfer", "ref-1", "rq-1"));
+        journal.append(JournalRecord.redeemed("shop", "transfer", "ref-1", "tok-1", "tx-1"));
+        awaitRecord(journal, "tok-1");
+
+        PaymentJournal reopened = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        JournalRecord latest = reopened.latest("ref-1");
+        assertNotNull(latest);
+        assertEquals(JournalRecord.Event.REDEEMED, latest.getEvent());
+        assertEquals("tx-1", latest.getResultId());
+        assertEquals("shop", latest.getMerchantKey());
+        assertEquals(latest.getSequence(), reopened.latest("tok-1").getSequence());
+    }
+
+    @Test
+    public void discardsRecordThatFailsItsChecksum() throws Exception {
+        PaymentJournal journal = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        journal.append(JournalRecord.requested("shop", "transfer", "ref-1", "rq-1"));
+        journal.append(JournalRecord.requested("shop", "transfer", "ref-2", "rq-2"));
+        awaitRecord(journal, "ref-2");
+
+        // flip the last byte of the second record's body
+        int first = frameBytes(journal.latest("ref-1"));
+        int second = frameBytes(journal.latest("ref-2"));
+        Path file = onlySegment();
+        byte[] last = read(file, first + second - 1, 1);
+        write(file, first + second - 1, new byte[] {(byte) ~last[0]});
+
+        PaymentJournal reopened = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        assertNotNull(reopened.latest("ref-1"));
+        assertNull(reopened.latest("ref-2"));
+
+        // appending resumes where the torn record was
+        reopened.append(JournalRecord.requested("shop", "transfer", "ref-3", "rq-3"));
+        awaitRecord(reopened, "ref-3");
+        PaymentJournal again = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        assertNotNull(again.latest("ref-1"));
+        assertNull(again.latest("ref-2"));
+        assertNotNull(again.latest("ref-3"));
+    }
+
+    @Test
+    public void discardsEverythingAfterATornTail() throws Exception {
+        PaymentJournal journal = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        JournalRecord first = JournalRecord.requested("shop", "transfer", "ref-1", "rq-1");
+        journal.append(first);
+        awaitRecord(journal, "ref-1");
+        int end = frameBytes(journal.latest("ref-1"));
+
+        // a crash in the middle of a record: its header made it to disk, its body didn't
+        byte[] torn = JournalRecord.requested("shop", "transfer", "ref-2", "rq-2").stamp(1, 1).encode();
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(torn.length).putInt(crc(torn));
+        write(onlySegment(), end, header.array());
+        // and a well-formed record after it, which was never acknowledged
+        byte[] after = JournalRecord.requested("shop", "transfer", "ref-3", "rq-3").stamp(2, 1).encode();
+        write(onlySegment(), end + 8 + torn.length, frame(after));
+
+        PaymentJournal reopened = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        assertNotNull(reopened.latest("ref-1"));
+        assertNull(reopened.latest("ref-2"));
+        assertNull(reopened.latest("ref-3"));
+        // the tail was cleared, so it stays gone
+        PaymentJournal again = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        assertNull(again.latest("ref-3"));
+    }
+
+    @Test
+    public void deletesSegmentsBeyondTheLimit() throws Exception {
+        PaymentJournal journal = open(512, 2, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            journal.append(JournalRecord.requested("shop", "transfer", "ref-" + i, "rq-" + i));
+        }
+        awaitRecord(journal, "ref-99");
+
+        assertEquals(2, segments().size());
+        assertNull(journal.latest("ref-0"));
+        assertNotNull(journal.latest("ref-99"));
+
+        PaymentJournal reopened = open(512, 2, Long.MAX_VALUE);
+        assertNull(reopened.latest("ref-0"));
+        assertNotNull(reopened.latest("ref-99"));
+    }
+
+    @Test
+    public void deletesSegmentsPastTheirRetention() throws Exception {
+        PaymentJournal journal = open(512, 100, 0);
+        for (int i = 0; i < 100; i++) {
+            journal.append(JournalRecord.requested("shop", "transfer", "ref-" + i, "rq-" + i));
+        }
+        awaitRecord(journal, "ref-99");
+
+        assertEquals(1, segments().size());
+        assertNull(journal.latest("ref-0"));
+        assertNotNull(journal.latest("ref-99"));
+    }
+
+    @Test
+    public void readsSegmentsAtTheSizeTheyWereCreatedWith() throws Exception {
+        PaymentJournal journal = open(SEGMENT_BYTES, 16, Long.MAX_VALUE);
+        journal.append(JournalRecord.requested("shop", "transfer", "ref-1", "rq-1"));
+        awaitRecord(journal, "ref-1");
+
+        PaymentJournal smaller = open(512, 16, Long.MAX_VALUE);
+        assertNotNull(smaller.latest("ref-1"));
+        for (int i = 2; i < 50; i++) {
+            smaller.append(JournalRecord.requested("shop", "transfer", "ref-" + i, "rq-" + i));
+        }
+        awaitRecord(smaller, "ref-49");
+        assertEquals(SEGMENT_BYTES, Files.size(segments().get(0)));
+
+        PaymentJournal reopened = open(512, 16, Long.MAX_VALUE);
+        for (int i = 1; i < 50; i++) {
+            assertNotNull("ref-" + i, reopened.latest("ref-" + i));
+        }
+    }
+
+    private PaymentJournal open(int segmentBytes, int maxSegments, long retentionMs)
+            throws IOException {
+        return new PaymentJournal(
+                dir, segmentBytes, maxSegments, retentionMs, 1000, 16, 1024, new Metrics());
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private static void awaitRecord(PaymentJournal journal, String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (journal.latest(id) == null) {
+            assertTrue("timed out waiting for " + id, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static int frameBytes(JournalRecord record) {
+        return 8 + record.encode().length;
+    }
+
+    private static byte[] frame(byte[] body) {
+        return ByteBuffer.allocate(8 + body.length)
+                .putInt(body.length)
+                .putInt(crc(body))
+                .put(body)
+                .array();
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] read(Path file, long position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            channel.read(buffer, position);
+            return buffer.array();
+        }
+    }
+
+    private static void write(Path file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+}
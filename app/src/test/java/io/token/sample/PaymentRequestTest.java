@@ -0,0 +1,51 @@
+package io.token.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class PaymentRequestTest {
+    @Test
+    public void keepsTheExactAmount() {
+        assertEquals(10.25, payment("10.250", "EUR").getAmountAsDouble(), 0);
+        assertEquals(1e14, payment("1E+14", "EUR").getAmountAsDouble(), 0);
+        assertEquals(123456789012345.0, payment("123456789012345", "JPY").getAmountAsDouble(), 0);
+    }
+
+    @Test
+    public void rejectsAmountsADoubleCantHoldExactly() {
+        assertInvalid("1E+400", "EUR");
+        assertInvalid("1E+20", "EUR");
+        assertInvalid("1234567890123456", "JPY");
+        assertInvalid("12345678901234.56", "EUR");
+    }
+
+    @Test
+    public void rejectsMoreFractionDigitsThanTheCurrencyHas() {
+        assertInvalid("10.001", "EUR");
+        assertInvalid("10.5", "JPY");
+    }
+
+    @Test
+    public void rejectsAmountsThatArentPositive() {
+        assertInvalid("0", "EUR");
+        assertInvalid("-1", "EUR");
+    }
+
+    private static PaymentRequest payment(String amount, String currency) {
+        return PaymentRequest.fromJson(new StringReader(
+                "{\"amount\": \"" + amount + "\", \"currency\": \"" + currency + "\"}"));
+    }
+
+    private static void assertInvalid(String amount, String currency) {
+        try {
+            payment(amount, currency);
+            fail("Expected " + amount + " " + currency + " to be rejected");
+        } catch (InvalidRequestException e) {
+            // rejected
+        }
+    }
+}
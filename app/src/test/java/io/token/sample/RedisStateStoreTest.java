@@ -0,0 +1,528 @@
+package io.token.sample;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisStateStoreTest {
+    private static final long TIMEOUT_MS = 5_000;
+
+    private FakeRedis redis;
+
+    @Before
+    public void setUp() throws IOException {
+        redis = new FakeRedis();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        redis.close();
+    }
+
+    @Test
+    public void readsWhatAnotherNodeWrote() throws Exception {
+        RedisStateStore writer = open(new Metrics());
+        RedisStateStore reader = open(new Metrics());
+        // multi-byte characters: RESP lengths are in bytes
+        writer.put("key", "v\u00e4lue \u20ac", 60_000);
+        awaitTrue(() -> redis.values.containsKey("key"));
+
+        assertEquals("v\u00e4lue \u20ac", reader.get("key"));
+        assertNull(reader.get("missing"));
+    }
+
+    @Test
+    public void claimsAKeyOnlyOnce() throws Exception {
+        RedisStateStore first = open(new Metrics());
+        RedisStateStore second = open(new Metrics());
+
+        assertTrue(first.putIfAbsent("claim", "first", 60_000));
+        assertFalse(second.putIfAbsent("claim", "second", 60_000));
+        assertEquals("first", second.get("claim"));
+    }
+
+    @Test
+    public void replacesOnlyTheExpectedValue() throws Exception {
+        RedisStateStore first = open(new Metrics());
+        RedisStateStore second = open(new Metrics());
+        assertTrue(first.putIfAbsent("status", "failed", 60_000));
+
+        assertTrue(first.replace("status", "failed", "queued", 60_000));
+        assertFalse(second.replace("status", "failed", "queued again", 60_000));
+        assertFalse(second.replace("missing", "failed", "queued", 60_000));
+        assertEquals("queued", second.get("status"));
+        assertNull(redis.values.get("missing"));
+    }
+
+    @Test
+    public void doesNotResendAClaimWhoseAnswerWasLost() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        redis.dropAfter.add("claim");
+
+        try {
+            store.putIfAbsent("claim", "value", 60_000);
+            fail("Expected StateStoreException");
+        } catch (StateStoreException e) {
+            // unknown whether the claim was made
+        }
+        assertEquals(1, redis.count("SET"));
+        assertEquals("value", redis.values.get("claim"));
+    }
+
+    @Test
+    public void resendsAReadWhoseAnswerWasLost() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        redis.values.put("key", "value");
+        redis.dropAfter.add("key");
+
+        assertEquals("value", store.get("key"));
+        assertEquals(2, redis.count("GET"));
+    }
+
+    @Test
+    public void reportsServerErrors() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        redis.errors.add("broken");
+
+        try {
+            store.get("broken");
+            fail("Expected StateStoreException");
+        } catch (StateStoreException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ERR broken"));
+        }
+        // the connection is still usable
+        assertNull(store.get("missing"));
+    }
+
+    @Test
+    public void invalidatesOtherNodesNearCaches() throws Exception {
+        RedisStateStore reader = open(new Metrics());
+        RedisStateStore writer = open(new Metrics());
+        awaitTrue(() -> redis.subscribers.size() == 2);
+        redis.values.put("key", "old");
+        awaitNearCache(reader, "key");
+        assertEquals("old", reader.get("key"));
+
+        writer.put("key", "new", 60_000);
+        awaitTrue(() -> "new".equals(reader.get("key")));
+    }
+
+    @Test
+    public void doesNotCacheAValueInvalidatedWhileItWasRead() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        redis.values.put("warm", "value");
+        awaitNearCache(store, "warm");
+        redis.values.put("key", "old");
+        // another node writes the key between the server reading it and answering
+        redis.writeDuringGet.put("key", "new");
+
+        assertEquals("old", store.get("key"));
+        assertEquals("new", store.get("key"));
+    }
+
+    @Test
+    public void pipelinesQueuedWrites() throws Exception {
+        Metrics metrics = new Metrics();
+        RedisStateStore store = open(metrics);
+        // hold the writer's connection in a slow round trip while the writes queue up
+        redis.slowSets.add("first");
+        store.put("first", "value", 60_000);
+        awaitTrue(() -> redis.count("SET") == 1);
+        for (int i = 0; i < 100; i++) {
+            store.put("key-" + i, "value", 60_000);
+        }
+        awaitTrue(() -> redis.values.containsKey("key-99"));
+
+        // one write, then its PUBLISH with up to 127 others, then the rest
+        assertTrue(metrics.scrape(), roundTrips(metrics) <= 4);
+    }
+
+    @Test
+    public void keepsTheOrderOfWritesWhenTheQueueIsFull() throws Exception {
+        RedisStateStore store = open(new Metrics(), 2);
+        redis.slowSets.add("first");
+        store.put("first", "value", 60_000);
+        awaitTrue(() -> redis.count("SET") == 1);
+        // fills the queue while the writer waits for the slow SET
+        store.put("key", "value", 60_000);
+        store.remove("key");
+        store.put("last", "value", 60_000);
+        // each write is followed by a PUBLISH; once the fourth has arrived, so have the writes
+        awaitTrue(() -> redis.count("PUBLISH") == 4);
+
+        assertFalse(redis.values.containsKey("key"));
+    }
+
+    @Test
+    public void reconnectsAfterTheServerRestarts() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        // absent values aren't cached, so every read needs a connection
+        redis.slowGets.add("slow");
+        readConcurrently(store, "slow", 4);
+
+        // every pooled connection is now dead
+        redis.restart();
+        assertNull(store.get("missing"));
+
+        readConcurrently(store, "slow", 4);
+        redis.restart();
+        assertTrue(store.putIfAbsent("claim", "value", 60_000));
+    }
+
+    @Test
+    public void readsConcurrentlyOverSeveralConnections() throws Exception {
+        RedisStateStore store = open(new Metrics());
+        redis.values.put("slow", "value");
+        redis.slowGets.add("slow");
+        readConcurrently(store, "slow", 4);
+
+        assertTrue(redis.maxConcurrentGets.get() > 1);
+    }
+
+    private RedisStateStore open(Metrics metrics) {
+        return open(metrics, 1_000);
+    }
+
+    private RedisStateStore open(Metrics metrics, int queueCapacity) {
+        return new RedisStateStore(
+                "localhost",
+                redis.port(),
+                2_000,
+                4,
+                128,
+                queueCapacity,
+                1_000,
+                60 * 60 * 1000,
+                metrics);
+    }
+
+    private void readConcurrently(RedisStateStore store, String key, int readers)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<String>> reads = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                reads.add(pool.submit(() -> store.get(key)));
+            }
+            for (Future<String> read : reads) {
+                assertEquals(redis.values.get(key), read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until reads of the key are answered from the near cache, which is used only once
+     * the store has subscribed to invalidations.
+     */
+    private void awaitNearCache(RedisStateStore store, String key) throws InterruptedException {
+        awaitTrue(() -> {
+            int before = redis.count("GET");
+            store.get(key);
+            return redis.count("GET") == before;
+        });
+    }
+
+    private static long roundTrips(Metrics metrics) {
+        for (String line : metrics.scrape().split("\n")) {
+            if (line.startsWith("merchant_state_store_round_trips_total{")) {
+                return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError("No round trips metric");
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in " + TIMEOUT_MS + "ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A Redis stand-in speaking just enough RESP for {@link RedisStateStore}: GET, SET with PX
+     * and NX, DEL, PING, PUBLISH and SUBSCRIBE. Expiry is ignored. Keys can be set up to misbehave.
+     */
+    private static final class FakeRedis {
+        private final ServerSocket server = new ServerSocket(0);
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+        private final List<OutputStream> subscribers = new CopyOnWriteArrayList<>();
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+        // keys whose command is executed and then the connection dropped without an answer
+        private final List<String> dropAfter = new CopyOnWriteArrayList<>();
+        // keys whose GET is answered with an error
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+        // keys whose GET or SET takes a while
+        private final List<String> slowGets = new CopyOnWriteArrayList<>();
+        private final List<String> slowSets = new CopyOnWriteArrayList<>();
+        // keys whose GET is raced by a write from another node
+        private final Map<String, String> writeDuringGet = new ConcurrentHashMap<>();
+        private final AtomicInteger concurrentGets = new AtomicInteger();
+        private final AtomicInteger maxConcurrentGets = new AtomicInteger();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        private FakeRedis() throws IOException {
+            Thread acceptor = new Thread(this::accept, "fake-redis");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int port() {
+            return server.getLocalPort();
+        }
+
+        private int count(String command) {
+            return (int) commands.stream().filter(command::equals).count();
+        }
+
+        /**
+         * Drops every connection, as a restart of the server would; the data survives.
+         */
+        private void restart() throws IOException {
+            subscribers.clear();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            sockets.clear();
+        }
+
+        private void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    sockets.add(socket);
+                    Thread connection = new Thread(() -> serve(socket), "fake-redis-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket closing = socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command == null) {
+                        return;
+                    }
+                    String name = command.get(0);
+                    commands.add(name);
+                    if (!execute(command, out)) {
+                        return;
+                    }
+                    // answer pipelined commands together, like the real thing
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+        }
+
+        /**
+         * Executes a command and writes its answer.
+         *
+         * @return false if the connection is to be dropped
+         */
+        private boolean execute(List<String> command, OutputStream out)
+                throws IOException, InterruptedException {
+            String key = command.size() > 1 ? command.get(1) : "";
+            switch (command.get(0)) {
+                case "GET":
+                    if (errors.contains(key)) {
+                        writeLine(out, "-ERR " + key);
+                        return true;
+                    }
+                    String value = values.get(key);
+                    if (slowGets.contains(key)) {
+                        int concurrent = concurrentGets.incrementAndGet();
+                        maxConcurrentGets.accumulateAndGet(concurrent, Math::max);
+                        Thread.sleep(200);
+                        concurrentGets.decrementAndGet();
+                    }
+                    String racing = writeDuringGet.remove(key);
+                    if (racing != null) {
+                        values.put(key, racing);
+                        publish(key);
+                        // let the invalidation arrive before the answer
+                        Thread.sleep(200);
+                    }
+                    if (dropAfter.remove(key)) {
+                        return false;
+                    }
+                    writeBulk(out, value);
+                    return true;
+                case "SET":
+                    if (slowSets.remove(key)) {
+                        Thread.sleep(500);
+                    }
+                    boolean stored = true;
+                    if (command.contains("NX")) {
+                        stored = values.putIfAbsent(key, command.get(2)) == null;
+                    } else {
+                        values.put(key, command.get(2));
+                    }
+                    if (dropAfter.remove(key)) {
+                        return false;
+                    }
+                    if (stored) {
+                        writeLine(out, "+OK");
+                    } else {
+                        writeBulk(out, null);
+                    }
+                    return true;
+                case "EVAL":
+                    // only the compare-and-set script of RedisStateStore#replace
+                    key = command.get(3);
+                    if (values.replace(key, command.get(4), command.get(5))) {
+                        writeLine(out, "+OK");
+                    } else {
+                        writeBulk(out, null);
+                    }
+                    return true;
+                case "PING":
+                    writeLine(out, "+PONG");
+                    return true;
+                case "DEL":
+                    writeLine(out, ":" + (values.remove(key) == null ? 0 : 1));
+                    return true;
+                case "PUBLISH":
+                    writeLine(out, ":" + publish(command.get(2)));
+                    return true;
+                case "SUBSCRIBE":
+                    writeArray(out, "subscribe", key, "1");
+                    out.flush();
+                    subscribers.add(out);
+                    return true;
+                default:
+                    writeLine(out, "-ERR unknown command " + command.get(0));
+                    return true;
+            }
+        }
+
+        private int publish(String key) {
+            int delivered = 0;
+            for (OutputStream subscriber : subscribers) {
+                try {
+                    synchronized (subscriber) {
+                        writeArray(subscriber, "message", "merchant-state:invalidate", key);
+                        subscriber.flush();
+                    }
+                    delivered++;
+                } catch (IOException e) {
+                    subscribers.remove(subscriber);
+                }
+            }
+            return delivered;
+        }
+
+        private static List<String> readCommand(InputStream in) throws IOException {
+            int type = in.read();
+            if (type == -1) {
+                return null;
+            }
+            if (type != '*') {
+                throw new IOException("Expected an array, got " + (char) type);
+            }
+            int count = Integer.parseInt(readLine(in));
+            List<String> command = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (in.read() != '$') {
+                    throw new IOException("Expected a bulk string");
+                }
+                int length = Integer.parseInt(readLine(in));
+                byte[] bytes = new byte[length];
+                for (int read = 0; read < length; ) {
+                    int n = in.read(bytes, read, length - read);
+                    if (n == -1) {
+                        return null;
+                    }
+                    read += n;
+                }
+                readLine(in);
+                command.add(new String(bytes, UTF_8));
+            }
+            return command;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c == -1) {
+                    throw new IOException("Connection closed");
+                }
+                line.write(c);
+            }
+            in.read();
+            return new String(line.toByteArray(), UTF_8);
+        }
+
+        private static void writeLine(OutputStream out, String line) throws IOException {
+            out.write(line.getBytes(UTF_8));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private static void writeBulk(OutputStream out, String value) throws IOException {
+            if (value == null) {
+                writeLine(out, "$-1");
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            writeLine(out, "$" + bytes.length);
+            out.write(bytes);
+            writeLine(out, "");
+        }
+
+        private static void writeArray(OutputStream out, String... items) throws IOException {
+            writeLine(out, "*" + items.length);
+            for (String item : items) {
+                writeBulk(out, item);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.token.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import spark.QueryParamsMap;
+import spark.Request;
+
+/**
+ * Measures reading the request parameters: binding the payment sent by the redirect routes'
+ * query string and by the popup routes' JSON body into a {@link PaymentRequest}, and parsing the
+ * callback data of the redeem routes. {@link #queryAsMap()} and {@link #paymentAsMap()} are the
+ * baselines of the untyped maps the routes used to build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParamsBenchmark {
+    private Request request;
+    private QueryParamsMap queryParams;
+    private String json;
+    private String callbackData;
+
+    /**
+     * Sets up the parameters as the page and the Token popup send them.
+     */
+    @Setup
+    public void setUp() {
+        Map<String, String[]> query = new HashMap<>();
+        query.put("amount", new String[] {"4.99"});
+        query.put("currency", new String[] {"EUR"});
+        query.put("description", new String[] {"Book Purchase"});
+        queryParams = new QueryParamsMap(query) {
+        };
+        request = new Request() {
+            @Override
+            public String queryParams(String name) {
+                String[] values = query.get(name);
+                return values == null ? null : values[0];
+            }
+
+            @Override
+            public QueryParamsMap queryMap() {
+                return queryParams;
+            }
+        };
+        json = "{\"amount\":4.99,\"currency\":\"EUR\",\"description\":\"Book Purchase\"}";
+        callbackData = "{\"tokenId\":\"tt:5zKtXEAq2mN8wB3vY9cR1dFgHjKlPqSt\","
+                + "\"state\":\"%7B%22csrfTokenHash%22%3A%22a1b2c3%22%7D\","
+                + "\"signature\":\"%7B%22memberId%22%3A%22m%3Atoken%22%7D\"}";
+    }
+
+    @Benchmark
+    public PaymentRequest paymentFromQuery() {
+        return PaymentRequest.fromQuery(request);
+    }
+
+    @Benchmark
+    public PaymentRequest payment() {
+        return PaymentRequest.fromJson(new StringReader(json));
+    }
+
+    @Benchmark
+    public Map<String, String> callbackFromJson() {
+        return RequestParams.fromJson(callbackData);
+    }
+
+    /**
+     * Copies the first value of each query parameter, as the redirect routes used to.
+     */
+    @Benchmark
+    public Map<String, String> queryAsMap() {
+        return request.queryMap().toMap().entrySet().stream()
+                .collect(Collectors.toMap(entry -> entry.getKey(), entry -> entry.getValue()[0]));
+    }
+
+    /**
+     * Parses the body with a new {@link Gson} and type token per request, as the popup routes
+     * used to.
+     */
+    @Benchmark
+    public Map<String, String> paymentAsMap() {
+        Gson gson = new Gson();
+        Type type = new TypeToken<Map<String, String>>() {
+        }.getType();
+        return gson.fromJson(json, type);
+    }
+}
@@ -0,0 +1,88 @@
+package io.token.sample;
+
+import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
+
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.submission.SubmissionProtos.StandingOrderSubmission;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.tokenrequest.TokenRequest;
+import io.token.tpp.tokenrequest.TokenRequestCallback;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link TokenGateway} that answers immediately without going to the network, so that the
+ * benchmarks measure only the work done by the sample itself.
+ */
+final class StubTokenGateway implements TokenGateway {
+    private static final Alias ALIAS = Alias.newBuilder()
+            .setType(DOMAIN)
+            .setValue("benchmark+noverify@example.com")
+            .build();
+    private static final CompletableFuture<String> REQUEST_ID =
+            CompletableFuture.completedFuture("rq:benchmark:5zKtXEAq");
+
+    @Override
+    public String memberId() {
+        return "m:benchmark:5zKtXEAq";
+    }
+
+    @Override
+    public CompletableFuture<Alias> firstAlias() {
+        return CompletableFuture.completedFuture(ALIAS);
+    }
+
+    @Override
+    public CompletableFuture<String> storeTokenRequest(TokenRequest request) {
+        return REQUEST_ID;
+    }
+
+    @Override
+    public CompletableFuture<String> generateTokenRequestUrl(String requestId) {
+        return CompletableFuture.completedFuture(
+                "https://web-app.sandbox.token.io/app/request-token/" + requestId);
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackUrl(
+            String callbackUrl,
+            String csrfToken) {
+        return unsupported("parseTokenRequestCallbackUrl");
+    }
+
+    @Override
+    public CompletableFuture<TokenRequestCallback> parseTokenRequestCallbackParams(
+            Map<String, String> callbackParams,
+            String csrfToken) {
+        return unsupported("parseTokenRequestCallbackParams");
+    }
+
+    @Override
+    public CompletableFuture<Token> getToken(String tokenId) {
+        return unsupported("getToken");
+    }
+
+    @Override
+    public CompletableFuture<Transfer> redeemToken(Token token) {
+        return unsupported("redeemToken");
+    }
+
+    @Override
+    public CompletableFuture<StandingOrderSubmission> redeemStandingOrderToken(String tokenId) {
+        return unsupported("redeemStandingOrderToken");
+    }
+
+    @Override
+    public CompletableFuture<Transfer> getTransfer(String transferId) {
+        return unsupported("getTransfer");
+    }
+
+    private static <T> CompletableFuture<T> unsupported(String call) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new UnsupportedOperationException(
+                call + " is not stubbed; the benchmarks only build token requests"));
+        return failed;
+    }
+}
@@ -0,0 +1,85 @@
+package io.token.sample;
+
+import io.token.tokenrequest.TokenRequest;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per-request work of the token request routes: building the
+ * {@link TokenRequest} protos and, for {@link #transferUrl()}, the whole path from metadata
+ * lookup to the Token request URL against a {@link StubTokenGateway}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenRequestBenchmark {
+    private PaymentRequest payment;
+    private MemberMetadata metadata;
+    private MemberMetadataCache metadataCache;
+    private TokenRequestUrlGenerator urlGenerator;
+    private TokenGateway gateway;
+
+    /**
+     * Sets up the stub gateway and the parameters sent by the page.
+     */
+    @Setup
+    public void setUp() {
+        payment = PaymentRequest.fromJson(new StringReader(
+                "{\"amount\":4.99,\"currency\":\"EUR\",\"description\":\"Book Purchase\"}"));
+
+        gateway = new StubTokenGateway();
+        metadataCache = new MemberMetadataCache(gateway, "http://localhost:3000", Long.MAX_VALUE);
+        metadata = metadataCache.get().join();
+        urlGenerator = new TokenRequestUrlGenerator(
+                "https://web-app.sandbox.token.io/app/request-token/{requestId}");
+    }
+
+    @Benchmark
+    public TokenRequest transfer() {
+        return TokenRequests.transfer(payment, metadata, "/redeem", "ref", "csrf", "DEFAULT");
+    }
+
+    @Benchmark
+    public TokenRequest oneStepTransfer() {
+        return TokenRequests.transfer(
+                payment,
+                metadata,
+                "/redirect-one-step-payment",
+                "ref",
+                "csrf",
+                "ONE_STEP");
+    }
+
+    @Benchmark
+    public TokenRequest standingOrder() {
+        return TokenRequests.standingOrder(
+                payment,
+                metadata,
+                "/redeem-standing-order",
+                "ref",
+                "csrf");
+    }
+
+    @Benchmark
+    public String transferUrl() {
+        return metadataCache.get()
+                .thenCompose(cached -> gateway.storeTokenRequest(TokenRequests.transfer(
+                        payment,
+                        cached,
+                        "/redeem",
+                        "ref",
+                        "csrf",
+                        "DEFAULT")))
+                .thenApply(urlGenerator::generate)
+                .join();
+    }
+}
@@ -0,0 +1,224 @@
+package io.token.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the full redirect payment flows against a running sample, typically started with
+ * {@code -Dtoken.backend=FAKE}, and reports throughput and latency percentiles.
+ *
+ * <p>Each simulated shopper repeatedly runs a flow: it starts the payment
+ * ({@code /transfer} or {@code /standing-order}), follows the redirect to the Token request
+ * URL, where the fake approves it, and follows the redirect back to the redeem endpoint,
+ * carrying the CSRF cookie set at the start.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:loadTest -PloadTestArgs="--concurrency 64 --duration 60"
+ * </pre>
+ *
+ * <p>Options: {@code --base-url} (default http://localhost:3000), {@code --concurrency}
+ * (default 16), {@code --duration} in seconds (default 30) and {@code --flow}, one of
+ * {@code transfer}, {@code standing-order} or {@code both} (default).
+ */
+public final class LoadGenerator {
+    private static final String CSRF_COOKIE = "csrf_token";
+
+    private final URL baseUrl;
+    private final Map<String, Step> steps = new LinkedHashMap<>();
+    private final LatencyHistogram flowLatency = new LatencyHistogram();
+    private final LongAdder flowErrors = new LongAdder();
+
+    private LoadGenerator(URL baseUrl) {
+        this.baseUrl = baseUrl;
+        for (String name : new String[] {"start", "approve", "redeem"}) {
+            steps.put(name, new Step());
+        }
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args command line options
+     * @throws Exception on invalid options or interruption
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("base-url", "http://localhost:3000");
+        options.put("concurrency", "16");
+        options.put("duration", "30");
+        options.put("flow", "both");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+
+        LoadGenerator generator = new LoadGenerator(new URL(options.get("base-url")));
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration")));
+        List<String> flows = new ArrayList<>();
+        if (!options.get("flow").equals("standing-order")) {
+            flows.add("/transfer");
+        }
+        if (!options.get("flow").equals("transfer")) {
+            flows.add("/standing-order");
+        }
+        generator.run(concurrency, durationMs, flows);
+    }
+
+    private void run(int concurrency, long durationMs, List<String> flows)
+            throws InterruptedException {
+        System.out.printf("Running %s with %d shoppers for %ds against %s%n",
+                flows, concurrency, TimeUnit.MILLISECONDS.toSeconds(durationMs), baseUrl);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            int shopper = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int n = shopper; System.nanoTime() < deadline; n++) {
+                        runFlow(flows.get(n % flows.size()));
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "shopper-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        report(System.nanoTime() - start);
+    }
+
+    private void runFlow(String path) {
+        long start = System.nanoTime();
+        try {
+            Response started = request("start", new URL(baseUrl,
+                    path + "?amount=4.99&currency=EUR&description=Load%20test"), null);
+            String csrfToken = started.cookies.get(CSRF_COOKIE);
+            Response approved = request("approve", started.location(), csrfToken);
+            Response redeemed = request("redeem", approved.location(), csrfToken);
+            if (redeemed.status / 100 != 2) {
+                throw new IOException("Redeem answered " + redeemed.status);
+            }
+            flowLatency.record(System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            flowErrors.increment();
+        }
+    }
+
+    private Response request(String stepName, URL url, String csrfToken) throws IOException {
+        Step step = steps.get(stepName);
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(60_000);
+            if (csrfToken != null) {
+                connection.setRequestProperty("Cookie", CSRF_COOKIE + "=" + csrfToken);
+            }
+            int status = connection.getResponseCode();
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            Response response = new Response(url, status, connection.getHeaderField("Location"));
+            List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+            if (cookies != null) {
+                for (String cookie : cookies) {
+                    String[] pair = cookie.split(";", 2)[0].split("=", 2);
+                    if (pair.length == 2) {
+                        response.cookies.put(pair[0].trim(), pair[1].trim());
+                    }
+                }
+            }
+            if (status >= 400) {
+                step.errors.increment();
+                throw new StepFailure(stepName + " answered " + status);
+            }
+            step.latency.record(System.nanoTime() - start);
+            return response;
+        } catch (IOException e) {
+            if (!(e instanceof StepFailure)) {
+                step.errors.increment();
+            }
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream body = in) {
+            byte[] buffer = new byte[4096];
+            while (body.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-8s %10s %10s %9s %9s %9s %9s %9s%n",
+                "", "count", "errors", "per sec", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms");
+        for (Map.Entry<String, Step> entry : steps.entrySet()) {
+            print(entry.getKey(), entry.getValue().latency, entry.getValue().errors.sum(), seconds);
+        }
+        print("flow", flowLatency, flowErrors.sum(), seconds);
+    }
+
+    private static void print(String name, LatencyHistogram histogram, long errors, double s) {
+        System.out.printf("%-8s %10d %10d %9.1f %9.2f %9.2f %9.2f %9.2f%n",
+                name,
+                histogram.count(),
+                errors,
+                histogram.count() / s,
+                histogram.percentileMicros(50) / 1000.0,
+                histogram.percentileMicros(90) / 1000.0,
+                histogram.percentileMicros(99) / 1000.0,
+                histogram.percentileMicros(99.9) / 1000.0);
+    }
+
+    private static final class Step {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    private static final class Response {
+        private final URL url;
+        private final int status;
+        private final String location;
+        private final Map<String, String> cookies = new LinkedHashMap<>();
+
+        private Response(URL url, int status, String location) {
+            this.url = url;
+            this.status = status;
+            this.location = location;
+        }
+
+        private URL location() throws IOException {
+            if (location == null) {
+                throw new IOException("Expected a redirect from " + url + ", got " + status);
+            }
+            return new URL(url, location);
+        }
+    }
+
+    /**
+     * A step answered with an error status; already counted in the step's errors.
+     */
+    private static final class StepFailure extends IOException {
+        private StepFailure(String message) {
+            super(message);
+        }
+    }
+}